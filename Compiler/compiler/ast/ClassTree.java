@@ -0,0 +1,168 @@
+package ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+// The syntax tree of one Jack class. Rather than an object per node, nodes live
+// in parallel arrays (an 'arena') and are referred to by their index; a node is
+// an Op, three operand slots (see Op for what they hold), the next node in the
+// list it belongs to (statements of a block, arguments of a call) and its Jack
+// type, if known. Passes rewrite nodes in place with set(). Strings (names,
+// types, string constants) are pooled and referred to by index too
+public class ClassTree {
+
+	// marks a missing child, the end of a list, or an unknown type
+	public static final int NONE = -1;
+
+	public String name;
+	public int numFields;
+	public int numStatics;
+	public List<Subroutine> subroutines;
+
+	private Op[] ops;
+	private int[] as;
+	private int[] bs;
+	private int[] cs;
+	private int[] nexts;
+	private int[] types;
+	private int size;
+
+	private List<String> strings;
+	private Map<String, Integer> stringIndex;
+
+	public ClassTree() {
+		subroutines = new ArrayList<Subroutine>();
+		ops = new Op[256];
+		as = new int[256];
+		bs = new int[256];
+		cs = new int[256];
+		nexts = new int[256];
+		types = new int[256];
+		size = 0;
+		strings = new ArrayList<String>();
+		stringIndex = new HashMap<String, Integer>();
+	}
+
+	// add a node; produces its index
+	public int add(Op op, int a, int b, int c) {
+		if (size == ops.length) {
+			ops = Arrays.copyOf(ops, 2 * size);
+			as = Arrays.copyOf(as, 2 * size);
+			bs = Arrays.copyOf(bs, 2 * size);
+			cs = Arrays.copyOf(cs, 2 * size);
+			nexts = Arrays.copyOf(nexts, 2 * size);
+			types = Arrays.copyOf(types, 2 * size);
+		}
+		ops[size] = op;
+		as[size] = a;
+		bs[size] = b;
+		cs[size] = c;
+		nexts[size] = NONE;
+		types[size] = NONE;
+		return size++;
+	}
+
+	// replace node n (its list link and type are kept)
+	public void set(int n, Op op, int a, int b, int c) {
+		ops[n] = op;
+		as[n] = a;
+		bs[n] = b;
+		cs[n] = c;
+	}
+
+	// number of nodes ever added (including ones no longer reachable)
+	public int size() {
+		return size;
+	}
+
+	public Op op(int n) {
+		return ops[n];
+	}
+
+	public int a(int n) {
+		return as[n];
+	}
+
+	public int b(int n) {
+		return bs[n];
+	}
+
+	public int c(int n) {
+		return cs[n];
+	}
+
+	public int next(int n) {
+		return nexts[n];
+	}
+
+	public int type(int n) {
+		return types[n];
+	}
+
+	public void setA(int n, int a) {
+		as[n] = a;
+	}
+
+	public void setB(int n, int b) {
+		bs[n] = b;
+	}
+
+	public void setC(int n, int c) {
+		cs[n] = c;
+	}
+
+	public void setNext(int n, int next) {
+		nexts[n] = next;
+	}
+
+	public void setType(int n, int type) {
+		types[n] = type;
+	}
+
+	// produce the pool index of s, adding it if needed
+	public int intern(String s) {
+		Integer index = stringIndex.get(s);
+		if (index == null) {
+			index = strings.size();
+			strings.add(s);
+			stringIndex.put(s, index);
+		}
+		return index;
+	}
+
+	public String string(int index) {
+		return strings.get(index);
+	}
+
+	// produce the type of node n as a String, or null if it is not known
+	public String typeName(int n) {
+		return types[n] == NONE ? null : strings.get(types[n]);
+	}
+
+	// visit every node of the list starting at n, and everything below them,
+	// children before parents
+	public void postOrder(int n, IntConsumer visit) {
+		for (; n != NONE; n = nexts[n]) {
+			Op op = ops[n];
+			if (op.aChild)
+				postOrder(as[n], visit);
+			if (op.bChild)
+				postOrder(bs[n], visit);
+			if (op.cChild)
+				postOrder(cs[n], visit);
+			visit.accept(n);
+		}
+	}
+
+	// number of nodes reachable from the subroutines
+	public int liveSize() {
+		int[] count = new int[1];
+		for (Subroutine subroutine : subroutines)
+			postOrder(subroutine.body, n -> count[0]++);
+		return count[0];
+	}
+}
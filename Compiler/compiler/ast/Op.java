@@ -0,0 +1,59 @@
+package ast;
+
+// the kinds of node in a ClassTree. Each node has three operand slots (a, b, c);
+// for every slot we record whether it holds a child node (or the head of a list
+// of them, linked through next) or a plain value
+public enum Op {
+	// <-- Expressions -->
+	// a: value (may be negative after optimization)
+	CONST(false, false, false),
+	// a: the string (see ClassTree.string)
+	STRING(false, false, false),
+	// a: the string, b: the static variable it is kept in once it is built (only
+	// made by StringPooling)
+	POOLED_STRING(false, false, false),
+	THIS(false, false, false),
+	// a: Segment ordinal, b: index
+	VAR(false, false, false),
+	// a: array, b: index; a read, unless it is the target of a LET
+	INDEX(true, true, false),
+	// a, b: operands, c: operator character
+	BINARY(true, true, false),
+	// a: operand, c: operator character
+	UNARY(true, false, false),
+	// a: full subroutine name (string), b: argument list (for methods, starts with
+	// the object), c: number of arguments
+	CALL(false, true, false),
+	// a: operand, b: constant factor; multiplication done with additions (only
+	// made by StrengthReduction)
+	MUL_CONST(true, false, false),
+	// a: operand, b: power of two (> 1); division done by the class's divide$pow2
+	// helper (only made by StrengthReduction)
+	DIV_POW2(true, false, false),
+
+	// <-- Statements -->
+	// a: VAR or INDEX target, b: value
+	LET(true, true, false),
+	// a: call
+	DO(true, false, false),
+	// a: condition, b: then statements, c: else statements
+	IF(true, true, true),
+	// a: condition, b: body
+	WHILE(true, true, false),
+	// a: value, or NONE for a void return
+	RETURN(true, false, false);
+
+	public final boolean aChild;
+	public final boolean bChild;
+	public final boolean cChild;
+
+	private Op(boolean aChild, boolean bChild, boolean cChild) {
+		this.aChild = aChild;
+		this.bChild = bChild;
+		this.cChild = cChild;
+	}
+
+	public boolean isStatement() {
+		return ordinal() >= LET.ordinal();
+	}
+}
@@ -0,0 +1,25 @@
+package ast;
+
+import compiler.tokenizer.Keyword;
+
+// a constructor, function or method of a ClassTree; its statements live in the
+// tree's node arrays
+public class Subroutine {
+
+	// full VM name (ex. Main.main)
+	public String name;
+	// CONSTRUCTOR, FUNCTION or METHOD
+	public Keyword kind;
+	public int numArgs;
+	public int numLocals;
+	// head of the statement list
+	public int body;
+
+	public Subroutine(String name, Keyword kind, int numArgs, int numLocals, int body) {
+		this.name = name;
+		this.kind = kind;
+		this.numArgs = numArgs;
+		this.numLocals = numLocals;
+		this.body = body;
+	}
+}
@@ -0,0 +1,72 @@
+package compiler;
+
+import java.io.File;
+
+import writer.Command;
+import writer.Segment;
+import writer.VMWriter;
+
+// The object allocator of --bump-alloc mode: constructors get their memory
+// from Arena.alloc instead of Memory.alloc. The arena is one block of SIZE
+// words, taken from Memory.alloc on first use, and handed out front to back;
+// allocating is an addition and a comparison, with no free list to walk (the VM
+// translator can even do it without a call, see vm.CodeWriter). Objects are
+// never freed one by one (they must not be disposed of with Memory.deAlloc);
+// instead, Arena.reset frees all of them at once, ex. at the end of every frame
+// of a simulation. Once the arena is full, objects come from Memory.alloc (and
+// reset does not free those)
+// static 0: next free word, static 1: end of the arena, static 2: its start
+public class Arena {
+
+	public static final String NAME = "Arena";
+	public static final String ALLOC = NAME + ".alloc";
+
+	// writes Arena.vm into the given directory, for an arena of size words
+	public static void write(File directory, int size) throws Exception {
+		VMWriter writer = new VMWriter(new File(directory, NAME + ".jack").getPath());
+		try {
+			// function Arena.alloc(int size)
+			writer.writeFunction(ALLOC, 0);
+			writer.writePush(Segment.STATIC, 1);
+			writer.writeIf("ready");
+			// first use; set up the arena
+			writer.writePush(Segment.CONSTANT, size);
+			writer.writeCall("Memory.alloc", 1);
+			writer.writePop(Segment.STATIC, 0);
+			writer.writePush(Segment.STATIC, 0);
+			writer.writePop(Segment.STATIC, 2);
+			writer.writePush(Segment.STATIC, 0);
+			writer.writePush(Segment.CONSTANT, size);
+			writer.writeArithmetic(Command.ADD);
+			writer.writePop(Segment.STATIC, 1);
+			writer.writeLabel("ready");
+			// if (next + size > end), there is no room left
+			writer.writePush(Segment.STATIC, 0);
+			writer.writePush(Segment.ARGUMENT, 0);
+			writer.writeArithmetic(Command.ADD);
+			writer.writePush(Segment.STATIC, 1);
+			writer.writeArithmetic(Command.GT);
+			writer.writeIf("full");
+			// return next, and move it past the new object
+			writer.writePush(Segment.STATIC, 0);
+			writer.writePush(Segment.STATIC, 0);
+			writer.writePush(Segment.ARGUMENT, 0);
+			writer.writeArithmetic(Command.ADD);
+			writer.writePop(Segment.STATIC, 0);
+			writer.writeReturn();
+			writer.writeLabel("full");
+			writer.writePush(Segment.ARGUMENT, 0);
+			writer.writeCall("Memory.alloc", 1);
+			writer.writeReturn();
+
+			// function void Arena.reset(); frees every object in the arena
+			writer.writeFunction(NAME + ".reset", 0);
+			writer.writePush(Segment.STATIC, 2);
+			writer.writePop(Segment.STATIC, 0);
+			writer.writePush(Segment.CONSTANT, 0);
+			writer.writeReturn();
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package compiler;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Remembers which .jack files of a directory were compiled, and from what, so
+// that a class whose source has not changed since the last run is not compiled
+// again. The manifest (MANIFEST, in the directory itself) has a line per class,
+// with tabs between the fields (file names may contain spaces):
+// <file name> <hash of source, compiler version, options and key> <hash of the .vm>
+// where the key describes anything else the class's code depends on (the
+// subroutines that are left out, see Reachability)
+// The .vm hash lets us notice outputs that were edited or deleted since; those
+// files are compiled again. Safe to use from several compiling threads at once
+public class BuildCache {
+
+	public static final String MANIFEST = ".jackcache";
+
+	private File directory;
+	private String options;
+
+	// entries read from the manifest, and entries for this run
+	private Map<String, String[]> previous;
+	private Map<String, String[]> current;
+
+	// consumes the directory being compiled, and a description of every option
+	// that changes the code we generate
+	public BuildCache(File directory, String options) throws Exception {
+		this.directory = directory;
+		this.options = options;
+		previous = new HashMap<String, String[]>();
+		current = new ConcurrentHashMap<String, String[]>();
+
+		File manifest = new File(directory, MANIFEST);
+		if (!manifest.exists())
+			return;
+		Scanner reader = new Scanner(manifest);
+		while (reader.hasNextLine()) {
+			String[] entry = reader.nextLine().split("\t");
+			if (entry.length == 3)
+				previous.put(entry[0], entry);
+		}
+		reader.close();
+	}
+
+	// produces true iff fileName was compiled from the same source and key, by the
+	// same compiler with the same options, and its .vm file is still what we
+	// wrote; the entry is carried over to the new manifest in that case
+	public boolean isFresh(String fileName, String key) throws Exception {
+		String name = new File(fileName).getName();
+		String[] entry = previous.get(name);
+		if (entry == null || !entry[1].equals(sourceHash(fileName, key)))
+			return false;
+		File output = outputOf(fileName);
+		if (!output.exists() || !entry[2].equals(hash(Files.readAllBytes(output.toPath()))))
+			return false;
+		current.put(name, entry);
+		return true;
+	}
+
+	// record that fileName was just compiled successfully
+	public void record(String fileName, String key) throws Exception {
+		String name = new File(fileName).getName();
+		current.put(name, new String[] { name, sourceHash(fileName, key),
+				hash(Files.readAllBytes(outputOf(fileName).toPath())) });
+	}
+
+	// write the new manifest. Classes in the old manifest that are no longer in the
+	// directory (deleted or renamed) lose their entry, and their .vm file is
+	// deleted too, unless it was changed by someone else since we wrote it (so a
+	// stale class never ends up in the translated program)
+	public void save(List<String> toParse) throws Exception {
+		for (String[] entry : previous.values()) {
+			File source = new File(directory, entry[0]);
+			if (source.exists())
+				continue;
+			File output = outputOf(source.getPath());
+			if (output.exists() && entry[2].equals(hash(Files.readAllBytes(output.toPath()))))
+				output.delete();
+		}
+
+		FileWriter writer = new FileWriter(new File(directory, MANIFEST));
+		for (String fileName : toParse) {
+			String[] entry = current.get(new File(fileName).getName());
+			if (entry != null)
+				writer.write(entry[0] + '\t' + entry[1] + '\t' + entry[2] + '\n');
+		}
+		writer.close();
+	}
+
+	private File outputOf(String fileName) {
+		return new File(fileName.substring(0, fileName.length() - 4) + "vm");
+	}
+
+	private String sourceHash(String fileName, String key) throws Exception {
+		byte[] source = Files.readAllBytes(new File(fileName).toPath());
+		byte[] header = (Compiler.VERSION + '\0' + options + '\0' + key + '\0').getBytes("UTF-8");
+		byte[] bytes = new byte[header.length + source.length];
+		System.arraycopy(header, 0, bytes, 0, header.length);
+		System.arraycopy(source, 0, bytes, header.length, source.length);
+		return hash(bytes);
+	}
+
+	private static String hash(byte[] bytes) throws Exception {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes))
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+}
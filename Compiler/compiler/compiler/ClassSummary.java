@@ -0,0 +1,131 @@
+package compiler;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.tokenizer.Keyword;
+import compiler.tokenizer.Token;
+import compiler.tokenizer.Tokenizer;
+
+// What the rest of the program needs to know about a class: which subroutines
+// each of its subroutines calls. Made by a quick scan over the tokens of the class,
+// without parsing it (calls are recognized by their shape: 'f(' and 'x.f(')
+// and without a symbol table (just a name to type map for resolving 'x' in
+// 'x.f(', which is enough, since Jack has no nested scopes)
+public class ClassSummary {
+
+	public String name;
+	// per subroutine (by full name, ex. Main.main)
+	public Map<String, Set<String>> callees;
+
+	public ClassSummary() {
+		callees = new HashMap<String, Set<String>>();
+	}
+
+	// consumes the name of a .jack file; throws if it does not look like a class
+	public static ClassSummary scan(String fileName) throws Exception {
+		Tokenizer tokenizer = new Tokenizer(fileName);
+		try {
+			return scan(tokenizer);
+		} finally {
+			tokenizer.close();
+		}
+	}
+
+	private static ClassSummary scan(Tokenizer tokenizer) throws Exception {
+		ClassSummary summary = new ClassSummary();
+		// types of the variables in scope (class-level ones, and the current
+		// subroutine's)
+		Map<String, String> classTypes = new HashMap<String, String>();
+		Map<String, String> localTypes = new HashMap<String, String>();
+		// callees of the current subroutine
+		Set<String> calls = null;
+
+		while (tokenizer.hasNext()) {
+			tokenizer.nextToken();
+			if (tokenizer.tokenType() == Token.KEYWORD) {
+				switch (tokenizer.keyword()) {
+				case CLASS:
+					summary.name = identifier(tokenizer);
+					break;
+				case STATIC:
+				case FIELD:
+				case VAR:
+					Map<String, String> types = tokenizer.keyword() == Keyword.VAR ? localTypes : classTypes;
+					String type = type(tokenizer);
+					do {
+						types.put(identifier(tokenizer), type);
+						advance(tokenizer);
+					} while (isSymbol(tokenizer, ','));
+					break;
+				case CONSTRUCTOR:
+				case FUNCTION:
+				case METHOD:
+					type(tokenizer);
+					String subroutine = summary.name + '.' + identifier(tokenizer);
+					localTypes = new HashMap<String, String>();
+					calls = new HashSet<String>();
+					advance(tokenizer); // '('
+					while (true) {
+						advance(tokenizer);
+						if (isSymbol(tokenizer, ')'))
+							break;
+						if (isSymbol(tokenizer, ','))
+							continue;
+						tokenizer.returnToken();
+						String paramType = type(tokenizer);
+						localTypes.put(identifier(tokenizer), paramType);
+					}
+					summary.callees.put(subroutine, calls);
+					break;
+				default:
+					break;
+				}
+			} else if (tokenizer.tokenType() == Token.IDENTIFIER && calls != null) {
+				String first = tokenizer.val();
+				char next = tokenizer.peekSymbol();
+				if (next == '(') {
+					// a method of this class
+					calls.add(summary.name + '.' + first);
+				} else if (next == '.') {
+					advance(tokenizer);
+					String callee = identifier(tokenizer);
+					// a method of the object in a variable, or else a function or constructor of
+					// the class with that name
+					String type = localTypes.containsKey(first) ? localTypes.get(first)
+							: classTypes.getOrDefault(first, first);
+					calls.add(type + '.' + callee);
+				}
+			}
+		}
+		if (summary.name == null)
+			throw new Exception("No class declaration");
+		return summary;
+	}
+
+	private static void advance(Tokenizer tokenizer) throws Exception {
+		if (!tokenizer.hasNext())
+			throw new Exception("Ran out of tokens");
+		tokenizer.nextToken();
+	}
+
+	private static String identifier(Tokenizer tokenizer) throws Exception {
+		advance(tokenizer);
+		if (tokenizer.tokenType() != Token.IDENTIFIER)
+			throw new Exception("Expected an identifier, found '" + tokenizer.val() + '\'');
+		return tokenizer.val();
+	}
+
+	// a type is a keyword (int, char, boolean, void) or a class name; produces the
+	// class name, or null
+	private static String type(Tokenizer tokenizer) throws Exception {
+		advance(tokenizer);
+		return tokenizer.tokenType() == Token.IDENTIFIER ? tokenizer.val() : null;
+	}
+
+	private static boolean isSymbol(Tokenizer tokenizer, char symbol) {
+		return tokenizer.tokenType() == Token.SYMBOL && tokenizer.symbol() == symbol;
+	}
+}
@@ -0,0 +1,569 @@
+package compiler;
+
+import ast.ClassTree;
+import ast.Op;
+import ast.Subroutine;
+import compiler.tokenizer.Keyword;
+import optimizer.ConstantFolding;
+import optimizer.StrengthReduction;
+import writer.Command;
+import writer.Segment;
+import writer.VMWriter;
+
+// lowers the (optimized) ClassTree of a class to VM code
+public class CodeGenerator {
+
+	private static final Segment[] SEGMENTS = Segment.values();
+
+	private ClassTree tree;
+	private VMWriter writer;
+	// the function constructors get their object's memory from
+	private String allocator;
+
+	private short labelCtr;
+	// the INDEX node whose element pointer 1 (the 'that' segment) is known to be
+	// set to while we generate the value of an array assignment, or NONE
+	private int that;
+	// true iff the class needs its divide$pow2 helper
+	private boolean dividesByPowersOfTwo;
+
+	public CodeGenerator(ClassTree tree, VMWriter writer, String allocator) {
+		this.tree = tree;
+		this.writer = writer;
+		this.allocator = allocator;
+		labelCtr = 0;
+		that = ClassTree.NONE;
+		dividesByPowersOfTwo = false;
+	}
+
+	public void run() throws Exception {
+		for (Subroutine subroutine : tree.subroutines) {
+			writer.writeFunction(subroutine.name, subroutine.numLocals);
+
+			if (subroutine.kind == Keyword.METHOD) {
+				// first arg should be a ref to the base address of the obj we are operating on
+				// - set the virtual 'this' segment to align with the specified memseg
+				writer.writePush(Segment.ARGUMENT, 0);
+				writer.writePop(Segment.POINTER, 0);
+			} else if (subroutine.kind == Keyword.CONSTRUCTOR) {
+				// allocate memory for the current object and set the 'this' ptr to the base
+				// address of the allocated memory segment
+				writer.writePush(Segment.CONSTANT, tree.numFields);
+				writer.writeCall(allocator, 1);
+				writer.writePop(Segment.POINTER, 0);
+			}
+
+			generateStatements(subroutine.body);
+		}
+
+		if (dividesByPowersOfTwo)
+			generateDividePow2();
+	}
+
+	private void generateStatements(int n) throws Exception {
+		for (; n != ClassTree.NONE; n = tree.next(n)) {
+			switch (tree.op(n)) {
+			case LET:
+				generateLet(n);
+				break;
+			case DO:
+				generateExpression(tree.a(n));
+				// do statements do not use the value left on the stack (the typical use case is
+				// in fact for calling void functions, which push a 0 on the stack when
+				// returning), so we must pop the result before releasing control
+				writer.writePop(Segment.TEMP, 0);
+				break;
+			case IF:
+				generateIf(n);
+				break;
+			case WHILE:
+				generateWhile(n);
+				break;
+			case RETURN:
+				if (tree.a(n) != ClassTree.NONE)
+					generateExpression(tree.a(n));
+				else
+					writer.writePush(Segment.CONSTANT, 0);
+				writer.writeReturn();
+				break;
+			default:
+				throw new Exception("Expected a statement, found " + tree.op(n));
+			}
+		}
+	}
+
+	private void generateLet(int n) throws Exception {
+		int target = tree.a(n);
+		if (tree.op(target) == Op.INDEX) {
+			// branch for array indexing; we need to align the virtual 'that' segment so
+			// that its 0 (or constant) index is the array entry
+			if (keepsThat(tree.b(n), target)) {
+				// the value cannot move pointer 1, so point it at the entry first (reads of
+				// the same entry in the value then come straight from 'that')
+				generateElement(target);
+				that = target;
+				generateExpression(tree.b(n));
+				that = ClassTree.NONE;
+				writer.writePop(Segment.THAT, offset(target));
+			} else {
+				generateAddress(target);
+				generateExpression(tree.b(n)); // push the value of the expr onto the stack
+				writer.writePop(Segment.TEMP, 0);
+				writer.writePop(Segment.POINTER, 1);
+				writer.writePush(Segment.TEMP, 0);
+				writer.writePop(Segment.THAT, offset(target));
+			}
+		} else {
+			generateExpression(tree.b(n));
+			writer.writePop(SEGMENTS[tree.a(target)], tree.b(target));
+		}
+	}
+
+	// a constant, non-negative array index is added by the 'that' segment instead
+	// of an add; produces the index to use with 'that' for INDEX node n
+	private int offset(int n) {
+		int index = tree.b(n);
+		return tree.op(index) == Op.CONST && tree.a(index) >= 0 ? tree.a(index) : 0;
+	}
+
+	// push the address of the array entry of INDEX node n, less its offset
+	private void generateAddress(int n) throws Exception {
+		generateExpression(tree.a(n)); // push base address
+		int index = tree.b(n);
+		if (tree.op(index) != Op.CONST || tree.a(index) < 0) {
+			generateExpression(index); // push the index
+			writer.writeArithmetic(Command.ADD); // get adjusted address
+		}
+	}
+
+	// point 'that' at the array entry of INDEX node n (see offset)
+	private void generateElement(int n) throws Exception {
+		generateAddress(n);
+		writer.writePop(Segment.POINTER, 1);
+	}
+
+	// produces true iff INDEX nodes n and k refer to the same array entry whenever
+	// they are evaluated in the same expression (a variable base, and the same
+	// variable or constant index)
+	private boolean sameElement(int n, int k) {
+		int base = tree.a(n);
+		int index = tree.b(n);
+		return tree.op(base) == Op.VAR && sameLeaf(base, tree.a(k))
+				&& (tree.op(index) == Op.VAR || tree.op(index) == Op.CONST) && sameLeaf(index, tree.b(k));
+	}
+
+	private boolean sameLeaf(int n, int k) {
+		return tree.op(n) == tree.op(k) && tree.a(n) == tree.a(k) && tree.b(n) == tree.b(k);
+	}
+
+	// produces true iff evaluating value leaves pointer 1 alone, or only sets it
+	// to the entry of target: it makes no calls (they may come back with 'that'
+	// elsewhere), and reads no array entry other than target's
+	private boolean keepsThat(int value, int target) {
+		boolean[] keeps = { true };
+		tree.postOrder(value, k -> {
+			switch (tree.op(k)) {
+			case CALL:
+			case STRING:
+			case POOLED_STRING:
+			case DIV_POW2:
+				keeps[0] = false;
+				break;
+			case INDEX:
+				keeps[0] &= sameElement(k, target);
+				break;
+			default:
+				break;
+			}
+		});
+		return keeps[0];
+	}
+
+	private void generateWhile(int n) throws Exception {
+		// compile "while (cond) statements" with the test at the bottom, so each
+		// iteration takes a single (conditional) jump:
+		// goto l2
+		// label l1
+		// <statements>
+		// label l2
+		// if cond goto l1
+
+		String l1 = "whileLabel0_" + labelCtr;
+		String l2 = "whileLabel1_" + labelCtr;
+		labelCtr++;
+
+		writer.writeGoto(l2);
+		writer.writeLabel(l1);
+
+		generateStatements(tree.b(n));
+
+		writer.writeLabel(l2);
+		generateBranch(tree.a(n), l1, true);
+	}
+
+	private void generateIf(int n) throws Exception {
+		// the labels are numbered before the branches are generated, so ifs nested in
+		// them get labels of their own
+		String l1 = "ifLabel0_" + labelCtr;
+		String l2 = "ifLabel1_" + labelCtr;
+		labelCtr++;
+
+		if (tree.c(n) == ClassTree.NONE) {
+			// if ~cond goto l1; <then>; label l1
+			generateBranch(tree.a(n), l1, false);
+			generateStatements(tree.b(n));
+			writer.writeLabel(l1);
+		} else if (prefersJumpIfTrue(tree.a(n))) {
+			// if cond goto l1; <else>; goto l2; label l1; <then>; label l2
+			generateBranch(tree.a(n), l1, true);
+			generateStatements(tree.c(n));
+			writer.writeGoto(l2);
+			writer.writeLabel(l1);
+			generateStatements(tree.b(n));
+			writer.writeLabel(l2);
+		} else {
+			// if ~cond goto l1; <then>; goto l2; label l1; <else>; label l2
+			generateBranch(tree.a(n), l1, false);
+			generateStatements(tree.b(n));
+			writer.writeGoto(l2);
+			writer.writeLabel(l1);
+			generateStatements(tree.c(n));
+			writer.writeLabel(l2);
+		}
+	}
+
+	// jump to label if condition n is true (whenTrue) or false (!whenTrue), and
+	// fall through otherwise. As with the ~cond / if-goto we always wrote, a
+	// condition is true iff it is -1; for conditions that can only be 0 or -1 (see
+	// isBoolean) that is the same as being non-zero, which is what if-goto tests,
+	// so we can skip computing ~cond (and skip whole comparisons, see below)
+	private void generateBranch(int n, String label, boolean whenTrue) throws Exception {
+		switch (tree.op(n)) {
+		case CONST:
+			if ((tree.a(n) == -1) == whenTrue)
+				writer.writeGoto(label);
+			return;
+		case UNARY:
+			if (tree.c(n) != '~')
+				break;
+			// ~x is true when x is false; for any x, ~x is -1 iff x is 0
+			if (isBoolean(tree.a(n))) {
+				generateBranch(tree.a(n), label, !whenTrue);
+				return;
+			}
+			if (!whenTrue) {
+				generateExpression(tree.a(n));
+				writer.writeIf(label);
+				return;
+			}
+			break;
+		case BINARY:
+			int x = tree.a(n);
+			int y = tree.b(n);
+			switch ((char) tree.c(n)) {
+			case '=':
+				// x = y is false iff x - y is non-zero
+				if (whenTrue)
+					break;
+				if (tree.op(x) == Op.CONST && tree.a(x) == 0) {
+					generateExpression(y);
+				} else {
+					generateExpression(x);
+					if (tree.op(y) != Op.CONST || tree.a(y) != 0) {
+						generateExpression(y);
+						writer.writeArithmetic(Command.SUB);
+					}
+				}
+				writer.writeIf(label);
+				return;
+			case '&':
+			case '|':
+				// test the operands one at a time, when the second one has no side effects
+				// that skipping it would lose
+				if (!isBoolean(x) || !isBoolean(y) || !ConstantFolding.isPure(tree, y))
+					break;
+				// x & y is false if x is, x | y is true if x is
+				boolean decides = tree.c(n) == '|';
+				if (whenTrue == decides) {
+					generateBranch(x, label, whenTrue);
+					generateBranch(y, label, whenTrue);
+				} else {
+					String skip = "branchLabel_" + labelCtr;
+					labelCtr++;
+					generateBranch(x, skip, decides);
+					generateBranch(y, label, whenTrue);
+					writer.writeLabel(skip);
+				}
+				return;
+			}
+			break;
+		default:
+			break;
+		}
+
+		generateExpression(n);
+		if (isBoolean(n)) {
+			if (!whenTrue)
+				writer.writeArithmetic(Command.NOT);
+			writer.writeIf(label);
+		} else if (!whenTrue) {
+			writer.writeArithmetic(Command.NOT);
+			writer.writeIf(label);
+		} else {
+			// n is -1 iff ~n is 0
+			String skip = "branchLabel_" + labelCtr;
+			labelCtr++;
+			writer.writeArithmetic(Command.NOT);
+			writer.writeIf(skip);
+			writer.writeGoto(label);
+			writer.writeLabel(skip);
+		}
+	}
+
+	// produces true iff n can only evaluate to 0 or -1 (false or true)
+	private boolean isBoolean(int n) {
+		switch (tree.op(n)) {
+		case CONST:
+			return tree.a(n) == 0 || tree.a(n) == -1;
+		case UNARY:
+			return tree.c(n) == '~' && isBoolean(tree.a(n));
+		case BINARY:
+			char op = (char) tree.c(n);
+			if (op == '<' || op == '>' || op == '=')
+				return true;
+			return (op == '&' || op == '|') && isBoolean(tree.a(n)) && isBoolean(tree.b(n));
+		default:
+			return false;
+		}
+	}
+
+	// produces true iff generateBranch writes less code for condition n when it
+	// jumps on true than on false (the VM can only invert a comparison with a not)
+	private boolean prefersJumpIfTrue(int n) {
+		if (tree.op(n) == Op.BINARY)
+			return tree.c(n) == '<' || tree.c(n) == '>';
+		if (tree.op(n) == Op.UNARY && tree.c(n) == '~' && isBoolean(tree.a(n)))
+			return !prefersJumpIfTrue(tree.a(n));
+		return false;
+	}
+
+	private void generateExpression(int n) throws Exception {
+		switch (tree.op(n)) {
+		case CONST:
+			generateConstant(tree.a(n));
+			break;
+		case STRING:
+			generateString(tree.string(tree.a(n)));
+			break;
+		case POOLED_STRING:
+			// build the string unless its static already points at it
+			String l1 = "stringLabel_" + labelCtr;
+			labelCtr++;
+			writer.writePush(Segment.STATIC, tree.b(n));
+			writer.writeIf(l1);
+			generateString(tree.string(tree.a(n)));
+			writer.writePop(Segment.STATIC, tree.b(n));
+			writer.writeLabel(l1);
+			writer.writePush(Segment.STATIC, tree.b(n));
+			break;
+		case THIS:
+			writer.writePush(Segment.POINTER, 0);
+			break;
+		case VAR:
+			writer.writePush(SEGMENTS[tree.a(n)], tree.b(n));
+			break;
+		case INDEX:
+			if (that == ClassTree.NONE || !sameElement(n, that))
+				generateElement(n);
+			writer.writePush(Segment.THAT, offset(n));
+			break;
+		case BINARY:
+			generateExpression(tree.a(n));
+			generateExpression(tree.b(n));
+			generateOperator((char) tree.c(n));
+			break;
+		case UNARY:
+			generateExpression(tree.a(n));
+			writer.writeArithmetic(tree.c(n) == '~' ? Command.NOT : Command.NEG);
+			break;
+		case CALL:
+			for (int arg = tree.b(n); arg != ClassTree.NONE; arg = tree.next(arg))
+				generateExpression(arg);
+			writer.writeCall(tree.string(tree.a(n)), tree.c(n));
+			break;
+		case MUL_CONST:
+			generateScale(tree.a(n), tree.b(n));
+			break;
+		case DIV_POW2:
+			generateExpression(tree.a(n));
+			writer.writePush(Segment.CONSTANT, tree.b(n));
+			writer.writeCall(tree.name + ".divide$pow2", 2);
+			dividesByPowersOfTwo = true;
+			break;
+		default:
+			throw new Exception("Expected an expression, found " + tree.op(n));
+		}
+	}
+
+	private void generateString(String string) throws Exception {
+		writer.writePush(Segment.CONSTANT, string.length());
+		writer.writeCall("String.new", 1);
+		for (char c : string.toCharArray()) {
+			writer.writePush(Segment.CONSTANT, (int) c);
+			writer.writeCall("String.appendChar", 2);
+		}
+	}
+
+	// push a constant; the VM only has non-negative constants, so a negative one
+	// is pushed as the complement of ~value (which is non-negative, even for -32768)
+	private void generateConstant(int value) throws Exception {
+		if (value >= 0) {
+			writer.writePush(Segment.CONSTANT, value);
+		} else {
+			writer.writePush(Segment.CONSTANT, ~value);
+			writer.writeArithmetic(Command.NOT);
+		}
+	}
+
+	// multiply x by a constant factor with doublings and additions/subtractions of
+	// x, one for each signed binary digit of the factor (see StrengthReduction).
+	// x is kept in temp 1 (unless we can just push it again) and the doubled value
+	// goes through temp 2; no call happens while we use them
+	private void generateScale(int x, int factor) throws Exception {
+		boolean simple = StrengthReduction.isSimple(tree, x);
+		generateExpression(x);
+		if (!simple) {
+			writer.writePop(Segment.TEMP, 1);
+			writer.writePush(Segment.TEMP, 1);
+		}
+
+		int[] digits = StrengthReduction.digits(factor);
+		for (int i = 1; i < digits.length; i++) {
+			// double
+			if (i == 1) {
+				pushScaled(x, simple);
+			} else {
+				writer.writePop(Segment.TEMP, 2);
+				writer.writePush(Segment.TEMP, 2);
+				writer.writePush(Segment.TEMP, 2);
+			}
+			writer.writeArithmetic(Command.ADD);
+
+			if (digits[i] != 0) {
+				pushScaled(x, simple);
+				writer.writeArithmetic(digits[i] > 0 ? Command.ADD : Command.SUB);
+			}
+		}
+
+		if (factor < 0)
+			writer.writeArithmetic(Command.NEG);
+	}
+
+	// push the operand of a scaling again
+	private void pushScaled(int x, boolean simple) throws Exception {
+		if (simple)
+			generateExpression(x);
+		else
+			writer.writePush(Segment.TEMP, 1);
+	}
+
+	// write the function that divides x by m = 2^k (k > 0), rounding towards zero
+	// like Math.divide: it adds up the bits of |x| from bit k on, each one worth
+	// 2^-k of itself. m is doubled until it overflows past bit 15 to 0, so a
+	// |x| of -32768 (which stays -32768 when negated) reads as 32768
+	private void generateDividePow2() throws Exception {
+		// argument 0: x, argument 1: m (the bit of x we look at next)
+		// local 0: quotient so far, local 1: what the bit of x at m is worth,
+		// local 2: the sign bit of x (non-zero iff x < 0; lt would overflow on
+		// -32768, see the VM translator)
+		writer.writeFunction(tree.name + ".divide$pow2", 3);
+		writer.writePush(Segment.CONSTANT, 1);
+		writer.writePop(Segment.LOCAL, 1);
+		writer.writePush(Segment.ARGUMENT, 0);
+		writer.writePush(Segment.CONSTANT, 32767);
+		writer.writeArithmetic(Command.NOT);
+		writer.writeArithmetic(Command.AND);
+		writer.writePop(Segment.LOCAL, 2);
+		writer.writePush(Segment.LOCAL, 2);
+		writer.writeIf("absolute");
+		writer.writeLabel("loop");
+
+		writer.writePush(Segment.ARGUMENT, 1);
+		writer.writePush(Segment.CONSTANT, 0);
+		writer.writeArithmetic(Command.EQ);
+		writer.writeIf("done");
+
+		writer.writePush(Segment.ARGUMENT, 0);
+		writer.writePush(Segment.ARGUMENT, 1);
+		writer.writeArithmetic(Command.AND);
+		writer.writePush(Segment.CONSTANT, 0);
+		writer.writeArithmetic(Command.EQ);
+		writer.writeIf("skip");
+		writer.writePush(Segment.LOCAL, 0);
+		writer.writePush(Segment.LOCAL, 1);
+		writer.writeArithmetic(Command.ADD);
+		writer.writePop(Segment.LOCAL, 0);
+		writer.writeLabel("skip");
+
+		writer.writePush(Segment.ARGUMENT, 1);
+		writer.writePush(Segment.ARGUMENT, 1);
+		writer.writeArithmetic(Command.ADD);
+		writer.writePop(Segment.ARGUMENT, 1);
+		writer.writePush(Segment.LOCAL, 1);
+		writer.writePush(Segment.LOCAL, 1);
+		writer.writeArithmetic(Command.ADD);
+		writer.writePop(Segment.LOCAL, 1);
+		writer.writeGoto("loop");
+
+		writer.writeLabel("absolute");
+		writer.writePush(Segment.ARGUMENT, 0);
+		writer.writeArithmetic(Command.NEG);
+		writer.writePop(Segment.ARGUMENT, 0);
+		writer.writeGoto("loop");
+
+		writer.writeLabel("done");
+		writer.writePush(Segment.LOCAL, 0);
+		writer.writePush(Segment.LOCAL, 2);
+		writer.writeIf("negate");
+		writer.writeReturn();
+		writer.writeLabel("negate");
+		writer.writeArithmetic(Command.NEG);
+		writer.writeReturn();
+	}
+
+	private void generateOperator(char op) throws Exception {
+		// ADD, SUB, NEG, EQ, GT, LT, AND, OR, NOT
+		// op: '+'|'-'|'*'|'/'|'&'|'|'|'<'|'>'|'='
+		switch (op) {
+		case '+':
+			writer.writeArithmetic(Command.ADD);
+			break;
+		case '-':
+			writer.writeArithmetic(Command.SUB);
+			break;
+		case '&':
+			writer.writeArithmetic(Command.AND);
+			break;
+		case '|':
+			writer.writeArithmetic(Command.OR);
+			break;
+		case '<':
+			writer.writeArithmetic(Command.LT);
+			break;
+		case '>':
+			writer.writeArithmetic(Command.GT);
+			break;
+		case '=':
+			writer.writeArithmetic(Command.EQ);
+			break;
+		case '*':
+			writer.writeCall("Math.multiply", 2);
+			break;
+		case '/':
+			writer.writeCall("Math.divide", 2);
+			break;
+		default:
+			throw new Exception("Unknown operation '" + op + '\'');
+		}
+	}
+}
@@ -1,18 +1,24 @@
 package compiler;
 
 import java.util.Arrays;
+import java.util.Set;
 
+import ast.ClassTree;
+import ast.Op;
+import ast.Subroutine;
 import compiler.tokenizer.Keyword;
 import compiler.tokenizer.Token;
 import compiler.tokenizer.Tokenizer;
+import optimizer.Pipeline;
 import symboltable.Kind;
+import symboltable.Symbol;
 import symboltable.SymbolTable;
-import writer.Command;
 import writer.Segment;
 import writer.VMWriter;
 
-// translates Jack code to XML (and later, VM bytecode); handles file opening and 
-// writing (provides a simple API). Instantiate a new Parser for each .jack file
+// parses a Jack class into a ClassTree, runs the optimization Pipeline over it
+// and hands it to the CodeGenerator; handles file opening and writing (provides
+// a simple API). Instantiate a new Parser for each .jack file
 public class CompilationEngine {
 
 	// We sometimes use a technique of grabbing the next token from the stream over
@@ -22,40 +28,62 @@ public class CompilationEngine {
 	// stream has excess tokens (ex. var declarations, because they are always
 	// present at the top of a subroutine or class) and therefore is permissible.
 
-	// Note that we could use peek() for the same functionality above but that does
-	// not give us access to the tokenizer API/abstractions (ex. the tokenType() and
-	// keyword() functions) while having the same risk of out of bounds
-	// exception/segfaulting. peek() is better in some cases though.
+	// Note that we could use peekIs()/peekSymbol() for the same functionality above
+	// but that does not give us access to the tokenizer API/abstractions (ex. the
+	// tokenType() and keyword() functions) while having the same risk of out of
+	// bounds exception/segfaulting. Peeking is better in some cases though.
 
-	// Benefit of using a string builder and decoupling the write/addLine operations
-	// is we could use try catch blocks to try adding particular blocks (and on
-	// exception, just assume that the block is not present) without committing
-	// incomplete outputs to the file
+	// The compile<...> functions below do not write any code; they add nodes to the
+	// tree and produce the index of the node (or list of nodes) they compiled.
+	// Variables are resolved while parsing, so the tree only knows segments and
+	// indices, not names
 
 	private Tokenizer tokenizer;
 	private SymbolTable symbolTable;
-	private VMWriter writer;
+	private ClassTree tree;
+	private Pipeline pipeline;
+	// full names of the subroutines to leave out of the output
+	private Set<String> unused;
+	private String allocator;
+	private boolean pipelined;
 
 	private String fileName;
 	private String className;
 
-	private short labelCtr;
-	private int args;
-
-	// consumes name of file to parse (should have .jack extension)
-	public CompilationEngine(String fileName) throws Exception {
-		tokenizer = new Tokenizer(fileName);
+	// consumes name of file to parse (should have .jack extension), the passes to
+	// run over its tree, and the subroutines that are never called (see
+	// Reachability); those are still checked, but generate no code. Constructors
+	// get their memory from the given allocator function (ex. Memory.alloc). In
+	// pipelined mode, lexing and writing the output run on threads of their own,
+	// alongside parsing and code generation
+	public CompilationEngine(String fileName, Pipeline pipeline, Set<String> unused, String allocator,
+			boolean pipelined) throws Exception {
+		tokenizer = new Tokenizer(fileName, pipelined);
 		symbolTable = new SymbolTable();
-		writer = new VMWriter(fileName);
+		tree = new ClassTree();
+		this.pipeline = pipeline;
+		this.unused = unused;
+		this.allocator = allocator;
+		this.pipelined = pipelined;
 
 		this.fileName = fileName;
-
-		labelCtr = 0;
 	}
 
 	public void run() throws Exception {
-		compileClass();
-		writer.close();
+		try {
+			compileClass();
+		} finally {
+			tokenizer.close();
+		}
+		tree.subroutines.removeIf(subroutine -> unused.contains(subroutine.name));
+		pipeline.run(tree);
+
+		VMWriter writer = new VMWriter(fileName, pipelined);
+		try {
+			new CodeGenerator(tree, writer, allocator).run();
+		} finally {
+			writer.close();
+		}
 	}
 
 	// try advancing tokenizer
@@ -95,8 +123,17 @@ public class CompilationEngine {
 			throw new Exception("Expected symbol " + symbol + " in " + fileName + ", found " + tokenizer.val());
 	}
 
-	private Segment varToSegment(String symbol) throws Exception {
-		switch (symbolTable.kindOf(symbol)) {
+	// find the symbol with the given name (one probe per scope), or throw an
+	// exception if it DNE
+	private Symbol findVar(String name) throws Exception {
+		Symbol symbol = symbolTable.lookup(name);
+		if (symbol == null)
+			throw new Exception("Symbol '" + name + "' not found");
+		return symbol;
+	}
+
+	private Segment varToSegment(Symbol symbol) throws Exception {
+		switch (symbol.kind) {
 		case STATIC:
 			return Segment.STATIC;
 		case FIELD:
@@ -107,10 +144,29 @@ public class CompilationEngine {
 			return Segment.ARGUMENT;
 		case NONE:
 		default:
-			throw new Exception("Symbol '" + symbol + "' not found");
+			throw new Exception("Symbol has no segment: " + symbol.kind);
 		}
 	}
 
+	// add a node for the variable with the given name
+	private int var(String name) throws Exception {
+		Symbol symbol = findVar(name);
+		return var(symbol);
+	}
+
+	private int var(Symbol symbol) throws Exception {
+		int node = tree.add(Op.VAR, varToSegment(symbol).ordinal(), symbol.index, 0);
+		tree.setType(node, tree.intern(symbol.type));
+		return node;
+	}
+
+	// add a node with a known type
+	private int typed(String type, Op op, int a, int b, int c) {
+		int node = tree.add(op, a, b, c);
+		tree.setType(node, tree.intern(type));
+		return node;
+	}
+
 	// compile a complete class; this is the 'init' function
 	private void compileClass() throws Exception {
 		// class identifier { classVarDec* subroutine* }
@@ -118,10 +174,13 @@ public class CompilationEngine {
 
 		assertToken(Token.IDENTIFIER);
 		className = tokenizer.val();
+		tree.name = className;
 
 		assertSymbol('{');
 
 		compileClassVarDec();
+		tree.numFields = symbolTable.varCount(Kind.FIELD);
+		tree.numStatics = symbolTable.varCount(Kind.STATIC);
 
 		compileSubroutine();
 
@@ -188,24 +247,13 @@ public class CompilationEngine {
 			assertSymbol('{');
 			compileVarDec();
 
+			// the code that sets up 'this' for methods and constructors is written by the
+			// CodeGenerator
+			int numArgs = symbolTable.varCount(Kind.ARG) + (subroutineType == Keyword.METHOD ? 1 : 0);
 			int numLocalVars = symbolTable.varCount(Kind.VAR);
+			int body = compileStatements();
+			tree.subroutines.add(new Subroutine(className + '.' + name, subroutineType, numArgs, numLocalVars, body));
 
-			writer.writeFunction(className + '.' + name, numLocalVars);
-
-			if (subroutineType == Keyword.METHOD) {
-				// first arg should be a ref to the base address of the obj we are operating on
-				// - set the virtual 'this' segment to align with the specified memseg
-				writer.writePush(Segment.ARGUMENT, 0);
-				writer.writePop(Segment.POINTER, 0);
-			} else if (subroutineType == Keyword.CONSTRUCTOR) {
-				// allocate memory for the current object and set the 'this' ptr to the base
-				// address of the allocated memory segment
-				writer.writePush(Segment.CONSTANT, symbolTable.varCount(Kind.FIELD));
-				writer.writeCall("Memory.alloc", 1);
-				writer.writePop(Segment.POINTER, 0);
-			}
-
-			compileStatements();
 			assertSymbol('}');
 
 			advance();
@@ -278,66 +326,70 @@ public class CompilationEngine {
 	}
 
 	// compile a sequence of statements, not including the enclosing
-	// curly braces
-	private void compileStatements() throws Exception {
+	// curly braces; produces the head of the list (NONE if it is empty)
+	private int compileStatements() throws Exception {
+		int head = ClassTree.NONE;
+		int tail = ClassTree.NONE;
 		advance();
 		while (isStatement()) {
+			int statement;
 			switch (tokenizer.keyword()) {
 			case LET:
-				compileLet();
+				statement = compileLet();
 				break;
 			case DO:
-				compileDo();
+				statement = compileDo();
 				break;
 			case IF:
-				compileIf();
+				statement = compileIf();
 				break;
 			case WHILE:
-				compileWhile();
+				statement = compileWhile();
 				break;
 			case RETURN:
-				compileReturn();
+				statement = compileReturn();
 				break;
 			default:
 				throw new Exception("Invalid keyword in statement");
 			}
+			if (head == ClassTree.NONE)
+				head = statement;
+			else
+				tree.setNext(tail, statement);
+			tail = statement;
 			advance();
 		}
 		tokenizer.returnToken();
+		return head;
 	}
 
 	// compile a do statement
 	// ASSUME: current token is 'do'
-	private void compileDo() throws Exception {
+	private int compileDo() throws Exception {
 		// 'do' subroutineCall ';'
-		compileSubroutineCall();
+		int call = compileSubroutineCall();
 		assertSymbol(';');
-		// do statements do not use the value left on the stack (the typical use case is
-		// in fact for calling void functions, which push a 0 on the stack when
-		// returning), so we must pop the result before releasing control
-		writer.writePop(Segment.TEMP, 0);
+		return tree.add(Op.DO, call, 0, 0);
 	}
 
 	// compile a subroutine call
-	private void compileSubroutineCall() throws Exception {
+	private int compileSubroutineCall() throws Exception {
 		// identifier (x | '.' identifier x)
 		// x = '(' expressionList ')'
 
-		args = 0;
-
 		assertToken(Token.IDENTIFIER);
 		String subroutine = tokenizer.val();
-		Boolean methodCall = tokenizer.peek().equals(".");
-		Boolean extraArg = false;
+		Boolean methodCall = tokenizer.peekIs(".");
+		// the object a method is called on is passed as the first argument
+		int object = ClassTree.NONE;
 
 		if (methodCall) {
 			// need to set 'this' to point at the object whose name is currently stored
 			// in the subroutine variable
-			try {
-				Segment ptr = varToSegment(subroutine);
-				writer.writePush(ptr, symbolTable.indexOf(subroutine));
-				extraArg = true;
-			} catch (Exception e) {
+			Symbol symbol = symbolTable.lookup(subroutine);
+			if (symbol != null) {
+				object = var(symbol);
+			} else {
 				// if the identifier is not found, then we have a constructor or function, not a
 				// method
 				methodCall = false;
@@ -345,206 +397,143 @@ public class CompilationEngine {
 			assertSymbol('.');
 			assertToken(Token.IDENTIFIER);
 			if (methodCall)
-				subroutine = symbolTable.typeOf(subroutine) + '.' + tokenizer.val();
+				subroutine = symbol.type + '.' + tokenizer.val();
 			else
 				subroutine += '.' + tokenizer.val();
 		} else {
-			writer.writePush(Segment.POINTER, 0);
+			object = typed(className, Op.THIS, 0, 0, 0);
 			subroutine = className + "." + subroutine;
-			extraArg = true;
 		}
 
 		assertSymbol('(');
-		args = 0;
-		compileExpressionList();
+		int list = compileExpressionList();
 		assertSymbol(')');
 
-		writer.writeCall(subroutine, args + (extraArg ? 1 : 0));
+		if (object != ClassTree.NONE) {
+			tree.setNext(object, list);
+			list = object;
+		}
+		// count the arguments here rather than in compileExpressionList, which nested
+		// calls re-enter
+		int args = 0;
+		for (int arg = list; arg != ClassTree.NONE; arg = tree.next(arg))
+			args++;
+		return tree.add(Op.CALL, tree.intern(subroutine), list, args);
 	}
 
 	// compile a let statement
 	// ASSUME: current token is 'let'
-	private void compileLet() throws Exception {
+	private int compileLet() throws Exception {
 		// 'let' varName ('[' expression ']')? '=' expression ';'
 		assertToken(Token.IDENTIFIER);
 		// tokenizer.val() is the name of variable we are assigning the value to
-		int index = symbolTable.indexOf(tokenizer.val());
-		Segment seg = varToSegment(tokenizer.val());
-		Boolean arrayEntry = false;
-
-		if (tokenizer.peek().equals("[")) {
-			arrayEntry = true;
-			// branch for array indexing; we need to align the virtual 'that' segment so
-			// that its 0 index is the array entry
-			assertSymbol('[');
-
-			writer.writePush(seg, index); // push base address
-			compileExpression(); // push the index we want to assign to onto the stack
-			writer.writeArithmetic(Command.ADD); // get adjusted address
-			// writer.writePop(Segment.POINTER, 1); // align 'that' seg
+		int target = var(tokenizer.val());
 
+		if (tokenizer.peekIs("[")) {
+			// branch for array indexing; the target is the array entry
+			assertSymbol('[');
+			target = tree.add(Op.INDEX, target, compileExpression(), 0);
 			assertSymbol(']');
 		}
 
 		assertSymbol('=');
-		compileExpression(); // push the value of the expr onto the stack
-
-		if (arrayEntry) {
-			writer.writePop(Segment.TEMP, 0);
-			writer.writePop(Segment.POINTER, 1);
-			writer.writePush(Segment.TEMP, 0);
-			writer.writePop(Segment.THAT, 0);
-		} else {
-			writer.writePop(seg, index);
-		}
+		int value = compileExpression();
 
 		assertSymbol(';');
+		return tree.add(Op.LET, target, value, 0);
 	}
 
 	// compile a while statement
 	// ASSUME: current token is 'while'
-	private void compileWhile() throws Exception {
+	private int compileWhile() throws Exception {
 		// 'while' '(' expression ')' '{' statements '}'
 		assertSymbol('(');
-
-		// compile "while (cond) statements)" to:
-		// label l1
-		// ~cond
-		// if-goto l2
-		// <statements>
-		// goto l1
-		// label l2
-
-		String l1 = "whileLabel0_" + labelCtr;
-		String l2 = "whileLabel1_" + labelCtr;
-		labelCtr++;
-
-		writer.writeLabel(l1);
-
-		compileExpression();
-		writer.writeArithmetic(Command.NOT);
-
-		writer.writeIf(l2);
-
+		int condition = compileExpression();
 		assertSymbol(')');
+
 		assertSymbol('{');
-		compileStatements();
+		int body = compileStatements();
 		assertSymbol('}');
 
-		writer.writeGoto(l1);
-		writer.writeLabel(l2);
+		return tree.add(Op.WHILE, condition, body, 0);
 	}
 
 	// compile a return statement
 	// ASSUME: current token is 'return'
-	private void compileReturn() throws Exception {
+	private int compileReturn() throws Exception {
 		// 'return' expression? ';'
-		if (!tokenizer.peek().equals(";"))
-			compileExpression();
-		else
-			writer.writePush(Segment.CONSTANT, 0);
-		writer.writeReturn();
+		int value = ClassTree.NONE;
+		if (!tokenizer.peekIs(";"))
+			value = compileExpression();
 		assertSymbol(';');
+		return tree.add(Op.RETURN, value, 0, 0);
 	}
 
 	// compile an if statement with optional else clause
 	// ASSUME: current token is 'if'
-	private void compileIf() throws Exception {
+	private int compileIf() throws Exception {
 		// 'if' '(' expression ')' '{' statements '}' ('else' '{' statements '}')?
-
-		String l1 = "ifLabel0_" + labelCtr;
-
-		// ~cond
 		assertSymbol('(');
-		compileExpression();
-		writer.writeArithmetic(Command.NOT);
+		int condition = compileExpression();
 		assertSymbol(')');
 
-		writer.writeIf(l1);
-
 		assertSymbol('{');
-		compileStatements();
+		int then = compileStatements();
 		assertSymbol('}');
 
-		if (tokenizer.peek().equals("else")) {
-			String l2 = "ifLabel1_" + labelCtr;
-			writer.writeGoto(l2);
-
-			writer.writeLabel(l1);
-
+		int otherwise = ClassTree.NONE;
+		if (tokenizer.peekIs("else")) {
 			advance();
 
 			assertSymbol('{');
-			compileStatements();
+			otherwise = compileStatements();
 			assertSymbol('}');
-
-			writer.writeLabel(l2);
-		} else {
-			writer.writeLabel(l1);
 		}
 
-		labelCtr++;
+		return tree.add(Op.IF, condition, then, otherwise);
 	}
 
-	private Boolean isOperation(String s) {
+	private Boolean isOperation(char c) {
 		// op: '+'|'-'|'*'|'/'|'&'|'|'|'<'|'>'|'='
-		return s.length() == 1 && Arrays.asList('+', '-', '*', '/', '&', '|', '<', '>', '=').contains(s.charAt(0));
+		return Arrays.asList('+', '-', '*', '/', '&', '|', '<', '>', '=').contains(c);
 	}
 
-	// compile an expression
-	private void compileExpression() throws Exception {
+	// compile an expression; Jack has no operator precedence, so the operators
+	// simply nest to the left
+	private int compileExpression() throws Exception {
 		// term (op term)*
-		compileTerm();
-		while (isOperation(tokenizer.peek())) {
+		int expression = compileTerm();
+		while (isOperation(tokenizer.peekSymbol())) {
 			advance();
 			char op = tokenizer.symbol();
 
-			compileTerm();
-			// ADD, SUB, NEG, EQ, GT, LT, AND, OR, NOT
-			// op: '+'|'-'|'*'|'/'|'&'|'|'|'<'|'>'|'='
-			Command command = Command.ADD;
-			Boolean arithmetic = true;
+			int right = compileTerm();
+			// comparisons produce booleans, '&' and '|' produce whatever they are given
+			// (they are bitwise), the rest produce ints
+			int type;
 			switch (op) {
-			case '+':
-				command = Command.ADD;
-				break;
-			case '-':
-				command = Command.SUB;
-				break;
-			case '&':
-				command = Command.AND;
-				break;
-			case '|':
-				command = Command.OR;
-				break;
 			case '<':
-				command = Command.LT;
-				break;
 			case '>':
-				command = Command.GT;
-				break;
 			case '=':
-				command = Command.EQ;
+				type = tree.intern("boolean");
 				break;
-			case '*':
-			case '/':
-				arithmetic = false;
+			case '&':
+			case '|':
+				type = tree.type(expression);
 				break;
 			default:
-				throw new Exception("Unknown operation '" + op + '\'');
+				type = tree.intern("int");
 			}
-
-			if (arithmetic)
-				writer.writeArithmetic(command);
-			else
-				writer.writeCall("Math." + (op == '*' ? "multiply" : "divide"), 2);
+			expression = tree.add(Op.BINARY, expression, right, op);
+			tree.setType(expression, type);
 		}
+		return expression;
 	}
 
 	// compile a term - uses a peek/look-ahead to distinguish between various
 	// regions of the grammar (in particular, '[', '(', '.' determine which rules
 	// we use)
-	private void compileTerm() throws Exception {
+	private int compileTerm() throws Exception {
 		// unaryOp: '-'|'~'
 		// term: integerConstant | stringConstant | keywordConstant |
 		// varName | varName '[' expression ']' | subroutineCall |
@@ -555,81 +544,72 @@ public class CompilationEngine {
 		case SYMBOL:
 			if (tokenizer.symbol() == '(') {
 				// '(' expression ')'
-				compileExpression();
+				int expression = compileExpression();
 				assertSymbol(')');
+				return expression;
 			} else {
 				// unaryOp term
-				Command cmd = tokenizer.symbol() == '~' ? Command.NOT : Command.NEG;
-				compileTerm();
-				writer.writeArithmetic(cmd);
+				char op = tokenizer.symbol();
+				int operand = compileTerm();
+				int term = tree.add(Op.UNARY, operand, 0, op);
+				tree.setType(term, op == '-' ? tree.intern("int") : tree.type(operand));
+				return term;
 			}
-			break;
 		case INT_CONST:
-			writer.writePush(Segment.CONSTANT, tokenizer.intVal());
-			break;
+			return typed("int", Op.CONST, tokenizer.intVal(), 0, 0);
 		case STRING_CONST:
-			writer.writePush(Segment.CONSTANT, tokenizer.val().length());
-			writer.writeCall("String.new", 1);
-			for (char c : tokenizer.val().toCharArray()) {
-				writer.writePush(Segment.CONSTANT, (int) c);
-				writer.writeCall("String.appendChar", 2);
-			}
-			break;
+			return typed("String", Op.STRING, tree.intern(tokenizer.val()), 0, 0);
 		case IDENTIFIER:
-			switch (tokenizer.peek()) {
-			case "[":
-				writer.writePush(varToSegment(tokenizer.val()), symbolTable.indexOf(tokenizer.val()));
+			switch (tokenizer.peekSymbol()) {
+			case '[':
 				// array access
+				int array = var(tokenizer.val());
 				assertSymbol('[');
-				compileExpression();
+				int index = compileExpression();
 				assertSymbol(']');
-				writer.writeArithmetic(Command.ADD);
-				writer.writePop(Segment.POINTER, 1);
-				writer.writePush(Segment.THAT, 0);
-				break;
-			case "(":
-			case ".":
+				return tree.add(Op.INDEX, array, index, 0);
+			case '(':
+			case '.':
 				tokenizer.returnToken();
-				compileSubroutineCall();
-				break;
+				return compileSubroutineCall();
 			default:
-				// default is we want to push the value of the symbol with the given name onto
-				// the stack
-				writer.writePush(varToSegment(tokenizer.val()), symbolTable.indexOf(tokenizer.val()));
+				return var(tokenizer.val());
 			}
-			break;
 		case KEYWORD:
 			switch (tokenizer.keyword()) {
 			case TRUE:
-				writer.writePush(Segment.CONSTANT, 0);
-				writer.writeArithmetic(Command.NOT);
-				break;
-			case NULL:
+				// true is all ones
+				return typed("boolean", Op.CONST, -1, 0, 0);
 			case FALSE:
-				writer.writePush(Segment.CONSTANT, 0);
-				break;
+				return typed("boolean", Op.CONST, 0, 0, 0);
+			case NULL:
+				return tree.add(Op.CONST, 0, 0, 0);
 			case THIS:
-				writer.writePush(Segment.POINTER, 0);
-				break;
+				return typed(className, Op.THIS, 0, 0, 0);
 			default:
 				throw new Exception("Found invalid keyword in expression");
 			}
-			break;
+		default:
+			throw new Exception("Unexpected token in expression: " + tokenizer.val());
 		}
 	}
 
-	// compile a (possibly empty) comma-separated list of expressions
-	private void compileExpressionList() throws Exception {
+	// compile a (possibly empty) comma-separated list of expressions; produces the
+	// head of the list
+	private int compileExpressionList() throws Exception {
 		// (expression (',' expression)* )?
-		if (!tokenizer.peek().equals(")")) {
-			compileExpression();
-			args++;
-			while (!tokenizer.peek().equals(")")) {
+		int head = ClassTree.NONE;
+		if (!tokenizer.peekIs(")")) {
+			head = compileExpression();
+			int tail = head;
+			while (!tokenizer.peekIs(")")) {
 				assertSymbol(',');
-				compileExpression();
-				args++;
+				int expression = compileExpression();
+				tree.setNext(tail, expression);
+				tail = expression;
 			}
 		}
+		return head;
 	}
 
 }
@@ -1,33 +1,168 @@
 package compiler;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import optimizer.LoopUnrolling;
+import optimizer.Pipeline;
 
 // Invokes the Parser module, and manages command line interfacing
 public class Compiler {
 
-	// consumes a directory name or .jack file name (extension necessary)
+	// part of the key of every BuildCache entry; bump it whenever a change to the
+	// compiler changes the code it generates
+	public static final String VERSION = "16";
+
+	// consumes a directory name or .jack file name (extension necessary),
+	// optionally followed by:
+	// --jobs n: compile up to n files at once (defaults to the number of cores)
+	// --no-cache: compile every file in a directory, even if it is unchanged (see
+	// BuildCache)
+	// --passes p1,p2,...: the optimization passes to run, in order; 'all' (the
+	// default) or 'none' (see Pipeline; some passes only run when named)
+	// --pass-stats: print the time spent in, and the effect of, each pass
+	// --keep-unused: generate code for every subroutine, even the ones the program
+	// never calls (only directories are checked for those, see Reachability)
+	// --unroll n: unroll counted loops n times (see LoopUnrolling)
+	// --unroll-budget n: the most tree nodes unrolling may add to a class
+	// (defaults to 200)
+	// --pipelined: lex, parse and write the output of each file on separate
+	// threads (helps with very big classes)
+	// --bump-alloc n: allocate objects from an n-word arena instead of with
+	// Memory.alloc (see Arena, which is written next to the output)
 	public static void main(String[] args) throws Exception {
 		if (args.length == 0)
 			throw new Exception("Must specify file or directory name");
 
 		// if we have a directory, get an array of all .jack files
 		String[] toParse;
-		Boolean prefix;
-		if (args[0].endsWith(".jack")) {
+		boolean directory = !args[0].endsWith(".jack");
+		if (!directory) {
 			toParse = new String[1];
 			toParse[0] = args[0];
-			prefix = false;
 		} else {
-			toParse = Arrays.stream(new File(args[0]).list()).filter(n -> n.endsWith(".jack")).toArray(String[]::new);
-			prefix = true;
+			toParse = Arrays.stream(new File(args[0]).list()).filter(n -> n.endsWith(".jack"))
+					.map(n -> new File(args[0], n).getPath()).sorted().toArray(String[]::new);
+		}
+
+		int jobs = Runtime.getRuntime().availableProcessors();
+		boolean cache = directory;
+		String passes = "all";
+		boolean passStats = false;
+		boolean keepUnused = false;
+		boolean pipelined = false;
+		int unrollFactor = 0;
+		int unrollBudget = 200;
+		int arenaSize = 0;
+		// options that change the generated code (these are part of the cache key)
+		List<String> options = new ArrayList<String>();
+		for (int i = 1; i < args.length; i++)
+			if (args[i].equals("--jobs") && i + 1 < args.length)
+				jobs = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--no-cache"))
+				cache = false;
+			else if (args[i].equals("--passes") && i + 1 < args.length)
+				passes = args[++i];
+			else if (args[i].equals("--pass-stats"))
+				passStats = true;
+			else if (args[i].equals("--keep-unused"))
+				keepUnused = true;
+			else if (args[i].equals("--pipelined"))
+				pipelined = true;
+			else if (args[i].equals("--unroll") && i + 1 < args.length)
+				unrollFactor = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--unroll-budget") && i + 1 < args.length)
+				unrollBudget = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--bump-alloc") && i + 1 < args.length)
+				arenaSize = Integer.parseInt(args[++i]);
+			else
+				throw new Exception("Unknown option '" + args[i] + '\'');
+
+		LoopUnrolling unrolling = unrollFactor > 0 ? new LoopUnrolling(unrollFactor, unrollBudget) : null;
+		Pipeline pipeline = new Pipeline(passes, unrolling);
+		options.add("--passes " + pipeline.names());
+		if (unrolling != null)
+			options.add("--unroll " + unrollFactor + " --unroll-budget " + unrollBudget);
+		String allocator = "Memory.alloc";
+		if (arenaSize > 0) {
+			File outputDirectory = directory ? new File(args[0]) : new File(args[0]).getAbsoluteFile().getParentFile();
+			if (new File(outputDirectory, Arena.NAME + ".jack").exists())
+				throw new Exception("The class name " + Arena.NAME + " is reserved in --bump-alloc mode");
+			Arena.write(outputDirectory, arenaSize);
+			allocator = Arena.ALLOC;
+			options.add("--bump-alloc " + arenaSize);
 		}
 
-		CompilationEngine parser;
+		Map<String, Set<String>> unused = directory && !keepUnused ? Reachability.unused(new File(args[0]), toParse)
+				: new HashMap<String, Set<String>>();
+
+		BuildCache buildCache = cache ? new BuildCache(new File(args[0]), String.join(" ", options)) : null;
+		int failed = compileAll(toParse, jobs, pipeline, unused, allocator, pipelined,
+				buildCache);
+		if (buildCache != null)
+			buildCache.save(Arrays.asList(toParse));
+		if (passStats)
+			System.err.print(pipeline.report());
+		if (failed > 0)
+			System.exit(1);
+	}
+
+	// Every CompilationEngine has its own Tokenizer, SymbolTable and VMWriter, and
+	// a class never looks at another class while it is compiled, so the files can
+	// be compiled independently of each other. We hand them to a work-stealing pool
+	// and then wait for them in file order, so errors are always reported in the
+	// same order no matter which file finishes first; a file that fails does not
+	// stop the others. Files the cache knows to be up to date are skipped (cache
+	// may be null). Produces the number of files that failed
+	private static int compileAll(String[] toParse, int jobs, Pipeline pipeline, Map<String, Set<String>> unused,
+			String allocator, boolean pipelined, BuildCache cache) throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, jobs));
+		List<Future<Throwable>> results = new ArrayList<Future<Throwable>>();
+		for (String fileName : toParse)
+			results.add(pool.submit(() -> compile(fileName, pipeline,
+					unused.getOrDefault(fileName, new HashSet<String>()), allocator, pipelined, cache)));
+
+		int failed = 0;
+		for (int i = 0; i < toParse.length; i++) {
+			Throwable error = results.get(i).get();
+			if (error != null) {
+				// an Error (ex. a StackOverflowError on deeply nested code) is named
+				// rather than described
+				System.err.println(toParse[i] + ": " + (error instanceof Exception ? error.getMessage() : error));
+				failed++;
+			}
+		}
+		pool.shutdown();
+		return failed;
+	}
 
-		for (String fileName : toParse) {
-			parser = new CompilationEngine(prefix ? args[0] + "\\" + fileName : fileName);
-			parser.run();
+	// compile a single file unless it is up to date; produces whatever was thrown
+	// that stopped it (errors too, so they are reported with the file), or null
+	private static Throwable compile(String fileName, Pipeline pipeline, Set<String> unused, String allocator,
+			boolean pipelined, BuildCache cache) {
+		try {
+			// which subroutines are left out is part of what the output depends on
+			String key = String.join(",", new TreeSet<String>(unused));
+			if (cache != null && cache.isFresh(fileName, key))
+				return null;
+			new CompilationEngine(fileName, pipeline, unused, allocator, pipelined).run();
+			if (cache != null)
+				cache.record(fileName, key);
+			return null;
+		} catch (Throwable e) {
+			// whatever was written is incomplete; don't leave it around for the VM
+			// translator to pick up
+			new File(fileName.substring(0, fileName.length() - 4) + "vm").delete();
+			return e;
 		}
 	}
 }
@@ -0,0 +1,96 @@
+package compiler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+
+// Finds the subroutines of a program (every class in a directory) that can never
+// run, so that no code is generated for them. Every class is summarized (see
+// ClassSummary), and we follow the calls from the subroutines that are entered
+// from outside the Jack code:
+// - Main.main and Sys.init (the program and bootstrap entry points)
+// - everything in the OS classes, which the OS (whether built in, hand-written
+// VM code or Jack) calls as it pleases
+// - whatever the .vm files of the directory that do not come from one of its
+// .jack files call
+// When the directory has no Main.main (ex. a library), or a class cannot be
+// summarized (it will fail to compile anyway), nothing is dropped
+public class Reachability {
+
+	private static final Set<String> OS = new HashSet<String>(
+			Arrays.asList("Array", "Keyboard", "Math", "Memory", "Output", "Screen", "String", "Sys"));
+
+	// consumes the directory and its .jack files; produces, per .jack file, the
+	// full names of its subroutines that cannot be reached
+	public static Map<String, Set<String>> unused(File directory, String[] toParse) {
+		Map<String, Set<String>> unused = new HashMap<String, Set<String>>();
+		Map<String, ClassSummary> summaries = new HashMap<String, ClassSummary>();
+		Map<String, Set<String>> callees = new HashMap<String, Set<String>>();
+		try {
+			for (String fileName : toParse) {
+				ClassSummary summary = ClassSummary.scan(fileName);
+				summaries.put(fileName, summary);
+				callees.putAll(summary.callees);
+			}
+		} catch (Exception e) {
+			return unused;
+		}
+		if (!callees.containsKey("Main.main"))
+			return unused;
+
+		LinkedList<String> worklist = new LinkedList<String>();
+		worklist.add("Main.main");
+		worklist.add("Sys.init");
+		for (ClassSummary summary : summaries.values())
+			if (OS.contains(summary.name))
+				worklist.addAll(summary.callees.keySet());
+		try {
+			worklist.addAll(vmCalls(directory, toParse));
+		} catch (Exception e) {
+			return unused;
+		}
+
+		Set<String> reached = new HashSet<String>();
+		while (!worklist.isEmpty()) {
+			String subroutine = worklist.poll();
+			if (reached.add(subroutine) && callees.containsKey(subroutine))
+				worklist.addAll(callees.get(subroutine));
+		}
+
+		for (Map.Entry<String, ClassSummary> entry : summaries.entrySet()) {
+			Set<String> dropped = new HashSet<String>(entry.getValue().callees.keySet());
+			dropped.removeAll(reached);
+			unused.put(entry.getKey(), dropped);
+		}
+		return unused;
+	}
+
+	// the functions called by the .vm files of the directory that we did not
+	// generate
+	private static List<String> vmCalls(File directory, String[] toParse) throws Exception {
+		Set<String> generated = new HashSet<String>();
+		for (String fileName : toParse)
+			generated.add(new File(fileName).getName().replaceAll("\\.jack$", ".vm"));
+
+		List<String> calls = new ArrayList<String>();
+		for (String name : directory.list()) {
+			if (!name.endsWith(".vm") || generated.contains(name))
+				continue;
+			Scanner reader = new Scanner(new File(directory, name));
+			while (reader.hasNextLine()) {
+				String[] words = reader.nextLine().trim().split("\\s+");
+				if (words.length >= 2 && words[0].equals("call"))
+					calls.add(words[1]);
+			}
+			reader.close();
+		}
+		return calls;
+	}
+}
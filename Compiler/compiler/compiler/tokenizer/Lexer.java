@@ -0,0 +1,194 @@
+package compiler.tokenizer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Scans Jack tokens out of a byte buffer, one at a time. Every character is
+// looked up once in a character class table and drives a small DFA that works
+// out, in the same pass, the token type, the keyword (by walking a trie of all
+// keywords) and the value of an integer constant; nothing has to look at the
+// text of a token again after it has been scanned.
+// NOTE: the SyntaxAnalyzer and the Compiler share this file (the copies only
+// differ in their package declaration); keep them in sync
+public class Lexer {
+
+	// character classes
+	private static final byte OTHER = 0;
+	private static final byte WHITE = 1;
+	private static final byte LOWER = 2;
+	private static final byte LETTER = 3;
+	private static final byte DIGIT = 4;
+	private static final byte SYMBOL = 5;
+	private static final byte QUOTE = 6;
+	private static final byte SLASH = 7;
+
+	private static final byte[] CLASSES = new byte[128];
+
+	// word states; a state >= 0 is a node of the keyword trie
+	private static final int INT = -1;
+	private static final int NAME = -2;
+
+	// TRIE[node][c - 'a'] is the node reached from node on c, or NAME if no keyword
+	// continues that way; node 0 is the root
+	private static final int[][] TRIE;
+	// the keyword that ends at each node, if any
+	private static final Keyword[] ACCEPT;
+
+	static {
+		for (int c = 0; c < CLASSES.length; c++) {
+			if (c <= ' ')
+				CLASSES[c] = WHITE;
+			else if (c >= 'a' && c <= 'z')
+				CLASSES[c] = LOWER;
+			else if (c >= 'A' && c <= 'Z' || c == '_')
+				CLASSES[c] = LETTER;
+			else if (c >= '0' && c <= '9')
+				CLASSES[c] = DIGIT;
+			else if ("{}()[].,;+-*&|<>=~".indexOf(c) >= 0)
+				CLASSES[c] = SYMBOL;
+			else if (c == '\"')
+				CLASSES[c] = QUOTE;
+			else if (c == '/')
+				CLASSES[c] = SLASH;
+			else
+				CLASSES[c] = OTHER;
+		}
+
+		// a keyword of length n adds at most n nodes
+		int size = 1;
+		for (Keyword keyword : Keyword.values())
+			size += keyword.name().length();
+		TRIE = new int[size][26];
+		ACCEPT = new Keyword[size];
+		for (int[] row : TRIE)
+			Arrays.fill(row, NAME);
+
+		int nodes = 1;
+		for (Keyword keyword : Keyword.values()) {
+			String text = keyword.name().toLowerCase();
+			int node = 0;
+			for (int i = 0; i < text.length(); i++) {
+				int c = text.charAt(i) - 'a';
+				if (TRIE[node][c] == NAME)
+					TRIE[node][c] = nodes++;
+				node = TRIE[node][c];
+			}
+			ACCEPT[node] = keyword;
+		}
+	}
+
+	private ByteBuffer source;
+	private int limit;
+	// position of the first character not scanned yet
+	private int position;
+
+	// the last token scanned; start and length locate it in the source (for a
+	// string constant, the quotes are included)
+	public Token type;
+	public int start;
+	public int length;
+	// only set for keywords and integer constants respectively
+	public Keyword keyword;
+	public int intValue;
+
+	public Lexer(ByteBuffer source, int limit) {
+		this.source = source;
+		this.limit = limit;
+		position = 0;
+	}
+
+	private char charAt(int i) {
+		return (char) (source.get(i) & 0xFF);
+	}
+
+	private static byte classOf(char c) {
+		return c < CLASSES.length ? CLASSES[c] : OTHER;
+	}
+
+	// move position past white-space and comments
+	private void skipIgnored() {
+		while (position < limit) {
+			byte cls = classOf(charAt(position));
+			if (cls == WHITE) {
+				position++;
+			} else if (cls == SLASH && position + 1 < limit && charAt(position + 1) == '/') {
+				while (position < limit && charAt(position) != '\n')
+					position++;
+			} else if (cls == SLASH && position + 1 < limit && charAt(position + 1) == '*') {
+				position += 2;
+				while (position < limit
+						&& !(charAt(position) == '*' && position + 1 < limit && charAt(position + 1) == '/'))
+					position++;
+				position += 2;
+			} else {
+				return;
+			}
+		}
+	}
+
+	// scan the next token into the public fields; produces false at the end of the
+	// source
+	public boolean next() throws Exception {
+		skipIgnored();
+		if (position >= limit)
+			return false;
+
+		start = position;
+		keyword = null;
+		char c = charAt(position);
+		switch (classOf(c)) {
+		case SYMBOL:
+		case SLASH:
+			position++;
+			type = Token.SYMBOL;
+			break;
+		case QUOTE:
+			position++;
+			while (position < limit && charAt(position) != '\"' && charAt(position) != '\n')
+				position++;
+			if (position >= limit || charAt(position) != '\"')
+				throw new Exception("Found unterminated string literal at offset " + start);
+			position++;
+			type = Token.STRING_CONST;
+			break;
+		default:
+			scanWord();
+		}
+		length = position - start;
+		return true;
+	}
+
+	// a word runs up to the next white-space, symbol or quote; it is an integer
+	// constant if it is all digits, a keyword if it spells one out, and an
+	// identifier otherwise
+	private void scanWord() {
+		int state = classOf(charAt(position)) == DIGIT ? INT : 0;
+		int value = 0;
+		while (position < limit) {
+			char c = charAt(position);
+			byte cls = classOf(c);
+			if (cls == WHITE || cls == SYMBOL || cls == SLASH || cls == QUOTE)
+				break;
+			if (state == INT) {
+				if (cls == DIGIT)
+					value = value * 10 + (c - '0');
+				else
+					state = NAME;
+			} else if (state >= 0) {
+				state = cls == LOWER ? TRIE[state][c - 'a'] : NAME;
+			}
+			position++;
+		}
+
+		if (state == INT) {
+			type = Token.INT_CONST;
+			intValue = value;
+		} else if (state >= 0 && ACCEPT[state] != null) {
+			type = Token.KEYWORD;
+			keyword = ACCEPT[state];
+		} else {
+			type = Token.IDENTIFIER;
+		}
+	}
+
+}
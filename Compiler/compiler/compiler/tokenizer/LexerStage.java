@@ -0,0 +1,63 @@
+package compiler.tokenizer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Scans a file on a thread of its own, ahead of the parser, and hands the
+// tokens over in batches (a token at a time would cost more in locking than
+// scanning it does). The queue is bounded, so the lexer never gets more than a
+// few batches ahead, and memory use still does not depend on the size of the
+// file
+public class LexerStage implements Runnable {
+
+	private static final int BATCH_SIZE = 1024;
+	private static final int QUEUE_SIZE = 4;
+
+	private Lexer lexer;
+	private BlockingQueue<TokenBatch> queue;
+	private Thread thread;
+
+	// consumes the lexer to run; starts scanning right away
+	public LexerStage(Lexer lexer) {
+		this.lexer = lexer;
+		queue = new ArrayBlockingQueue<TokenBatch>(QUEUE_SIZE);
+		thread = new Thread(this, "lexer");
+		// (a parser that gives up early must not keep the program alive)
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void run() {
+		try {
+			TokenBatch batch;
+			do {
+				batch = new TokenBatch(BATCH_SIZE);
+				try {
+					while (!batch.isFull() && lexer.next()) {
+						batch.starts[batch.size] = lexer.start;
+						batch.lengths[batch.size] = lexer.length;
+						batch.types[batch.size] = lexer.type;
+						batch.keywords[batch.size] = lexer.keyword;
+						batch.values[batch.size] = lexer.intValue;
+						batch.size++;
+					}
+				} catch (Exception e) {
+					batch.error = e;
+				}
+				queue.put(batch);
+			} while (batch.isFull());
+		} catch (InterruptedException e) {
+			// the parser stopped reading (see close)
+		}
+	}
+
+	// produces the next batch of tokens; the one that is not full is the last
+	public TokenBatch take() throws InterruptedException {
+		return queue.take();
+	}
+
+	// stop scanning, if we still are
+	public void close() {
+		thread.interrupt();
+	}
+}
@@ -0,0 +1,29 @@
+package compiler.tokenizer;
+
+// a run of tokens scanned by a LexerStage, in the same form as the Tokenizer
+// keeps them. The last batch of a file is not full; error is set if scanning
+// stopped on one (it comes after the tokens of the batch)
+public class TokenBatch {
+
+	public int[] starts;
+	public int[] lengths;
+	public Token[] types;
+	public Keyword[] keywords;
+	public int[] values;
+	public int size;
+	public Exception error;
+
+	public TokenBatch(int capacity) {
+		starts = new int[capacity];
+		lengths = new int[capacity];
+		types = new Token[capacity];
+		keywords = new Keyword[capacity];
+		values = new int[capacity];
+		size = 0;
+		error = null;
+	}
+
+	public boolean isFull() {
+		return size == starts.length;
+	}
+}
@@ -1,163 +1,166 @@
 package compiler.tokenizer;
 
-import java.io.File;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Scanner;
-
-// Handles file opening and tokenizing; removes all commands and white-space and 
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Handles file opening and tokenizing; skips all comments and white-space and
 // provides an API for reading a source file as a token stream
 public class Tokenizer {
 
-	private LinkedList<String> stream;
-	private String currentToken;
-	private Token tokenType;
-
-	public static final List<String> keywords = Arrays.asList("class", "method", "function", "constructor", "int",
-			"boolean", "char", "void", "var", "static", "field", "let", "do", "if", "else", "while", "return", "true",
-			"false", "null", "this");
-	public static final List<Character> symbols = Arrays.asList('{', '}', '(', ')', '[', ']', '.', ',', ';', '+', '-',
-			'*', '/', '&', '|', '<', '>', '=', '~');
-
 	/*
-	 * Note: a more efficient/robust tokenizer would not just store all the tokens
-	 * in memory! It would read some tokens at a time from the file, keeping track
-	 * of the number of the line it last stopped. This implies more efficient memory
-	 * usage because when we see malformed syntax, in a legit compiler, we'd throw
-	 * an exception and all that extra work we initially did in reading/cleaning the
-	 * file would be wasted. Did not do it this way b/c we only compile small
-	 * programs and our implementation is quite naive in many other respects
+	 * The file is memory-mapped and tokens are scanned lazily (by the Lexer), as
+	 * the parser asks for them. A token is never copied out of the file: it is just
+	 * an (offset, length) view into the mapped source, and a String is only built
+	 * when the caller asks for one (val()). We only keep the current token and
+	 * one scanned look-ahead token, so memory use does not depend on the size of
+	 * the file (the mapping is paged in and out by the OS).
+	 * In pipelined mode, a LexerStage scans the file on another thread, and the
+	 * look-ahead token is taken from the batches it hands over instead.
 	 */
 
+	private MappedByteBuffer source;
+	private Lexer lexer;
+	// pipelined mode: the stage scanning ahead, its current batch and our place
+	// in it
+	private LexerStage stage;
+	private TokenBatch batch;
+	private int batchIndex;
+
+	// the scanned token that has not been handed out yet (if ahead is true)
+	private int nextStart;
+	private int nextLength;
+	private Token nextType;
+	private Keyword nextKeyword;
+	private int nextValue;
+	private boolean ahead;
+
+	// current token
+	private int start;
+	private int length;
+	private Token tokenType;
+	private Keyword keyword;
+	private int value;
+	// true iff the current token was put back into the stream
+	private boolean returned;
+
 	// consumes file name as String; must end in .jack
 	public Tokenizer(String fileName) throws Exception {
-		stream = new LinkedList<String>();
-
-		Scanner reader = new Scanner(new File(fileName));
-		String line;
-		// needTerm is true iff we are inside an un-terminated multi-line comment
-		boolean needTerm = false;
-
-		while (reader.hasNextLine()) {
-			line = reader.nextLine();
-
-			// <-- Multi-line Comments -->
-			// if we are in a comment, need to check if it terminates (and if it doesn't, we
-			// skip the current line b/c comments are ignored)
-			if (needTerm)
-				if (line.contains("*/")) {
-					line = line.substring(line.indexOf("*/") + 2, line.length());
-					needTerm = false;
-				} else {
-					continue;
-				}
-
-			if (line.contains("/*"))
-				// check if "multi-line" comment terminates on a single line (this is legal)
-				if (line.contains("*/")) {
-					line = line.substring(0, line.indexOf("/*"))
-							+ line.substring(line.indexOf("*/") + 2, line.length());
-				} else {
-					line = line.substring(0, line.indexOf("/*"));
-					needTerm = true;
-				}
-
-			// <-- Single-line Comments -->
-			if (line.contains("//"))
-				line = line.substring(0, line.indexOf("//"));
-
-			line = line.trim().replaceAll("\\s+", " ");
-			if (line.isEmpty())
-				continue;
-
-			stream.addAll(decompose(line));
-		}
+		this(fileName, false);
+	}
 
-		reader.close();
-
-		for (String s : stream)
-			System.out.println(s);
-	}
-
-	// decompose given String into component tokens by splitting on spaces and
-	// symbols
-	private List<String> decompose(String line) throws Exception {
-		List<String> tokens = new ArrayList<String>();
-		String token = "";
-		boolean stringLiteral = false;
-
-		// not using switch because we have non-uniform cases
-		for (char c : line.toCharArray()) {
-			if (stringLiteral) {
-				token += c;
-				if (c == '\"') {
-					tokens.add(token);
-					token = "";
-					stringLiteral = false;
-				}
-			} else if (c == '\"') {
-				token += c;
-				stringLiteral = true;
-			} else if (c == ' ') {
-				if (!token.isEmpty())
-					tokens.add(token);
-				token = "";
-			} else if (symbols.contains(c)) {
-				if (!token.isEmpty())
-					tokens.add(token);
-				token = "";
-				tokens.add(String.valueOf(c));
-			} else {
-				token += c;
-			}
+	// in pipelined mode, the file is scanned on another thread (see LexerStage);
+	// the Tokenizer must be closed then
+	public Tokenizer(String fileName, boolean pipelined) throws Exception {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		FileChannel channel = file.getChannel();
+		source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		lexer = new Lexer(source, (int) channel.size());
+		// the mapping stays valid after the file is closed
+		file.close();
+
+		ahead = false;
+		returned = false;
+
+		if (pipelined) {
+			stage = new LexerStage(lexer);
+			batch = null;
+			batchIndex = 0;
 		}
+	}
 
-		if (stringLiteral)
-			throw new Exception("Found unterminated string literal in '" + line + '\'');
+	private char charAt(int i) {
+		return (char) (source.get(i) & 0xFF);
+	}
 
-		// grab token at end of the stream if there is one
-		if (!token.isEmpty())
-			tokens.add(token);
+	// scan the look-ahead token; produces false at the end of the file
+	private boolean scan() throws Exception {
+		if (stage != null)
+			return scanBatch();
+		if (!lexer.next())
+			return false;
+		nextStart = lexer.start;
+		nextLength = lexer.length;
+		nextType = lexer.type;
+		nextKeyword = lexer.keyword;
+		nextValue = lexer.intValue;
+		ahead = true;
+		return true;
+	}
 
-		return tokens;
+	// scan() for pipelined mode: take the look-ahead token from the stage's
+	// batches
+	private boolean scanBatch() throws Exception {
+		while (batch == null || batchIndex == batch.size) {
+			// the batch that is not full is the last one
+			if (batch != null && !batch.isFull()) {
+				if (batch.error != null)
+					throw batch.error;
+				return false;
+			}
+			batch = stage.take();
+			batchIndex = 0;
+		}
+		nextStart = batch.starts[batchIndex];
+		nextLength = batch.lengths[batchIndex];
+		nextType = batch.types[batchIndex];
+		nextKeyword = batch.keywords[batchIndex];
+		nextValue = batch.values[batchIndex];
+		batchIndex++;
+		ahead = true;
+		return true;
+	}
+
+	// make sure there is a look-ahead token, if there is one left
+	private boolean fill() throws Exception {
+		return ahead || scan();
 	}
 
 	// does the stream have any more tokens?
-	public Boolean hasNext() {
-		return stream.size() > 0;
+	public Boolean hasNext() throws Exception {
+		return returned || fill();
 	}
 
 	// read the next token from the stream (we do not give the caller the token
 	// because we want them to use the API we provide - results in less errors)
 	// CONSTRAINT: only called if hasNext() produces true
-	public void nextToken() {
-		currentToken = stream.pop();
-		tokenType = findTokenType();
-	}
-
-	// a look-ahead function
-	public String peek() {
-		return stream.peek();
-	}
-
-	// produce type of current token (private because we only want to figure out
-	// the token type ONCE for any given token)
-	private Token findTokenType() {
-		if (currentToken.length() == 1 && symbols.contains(currentToken.charAt(0)))
-			return Token.SYMBOL;
-		else if (keywords.contains(currentToken))
-			return Token.KEYWORD;
-		else if (currentToken.startsWith("\""))
-			return Token.STRING_CONST;
-
-		try {
-			Integer.parseInt(currentToken);
-			return Token.INT_CONST;
-		} catch (Exception e) {
-			return Token.IDENTIFIER;
+	public void nextToken() throws Exception {
+		if (returned) {
+			returned = false;
+			return;
 		}
+		fill();
+		start = nextStart;
+		length = nextLength;
+		tokenType = nextType;
+		keyword = nextKeyword;
+		value = nextValue;
+		ahead = false;
+	}
+
+	// a look-ahead function; produces true if the next token's text equals the
+	// given text (without building a String for the token)
+	public boolean peekIs(String text) throws Exception {
+		if (returned)
+			return matches(start, length, text);
+		return fill() && matches(nextStart, nextLength, text);
+	}
+
+	// a look-ahead function; produces the next token if it is a symbol, or 0 if
+	// it is not (or there are no more tokens)
+	public char peekSymbol() throws Exception {
+		if (returned)
+			return tokenType == Token.SYMBOL ? charAt(start) : 0;
+		return fill() && nextType == Token.SYMBOL ? charAt(nextStart) : 0;
+	}
+
+	private boolean matches(int from, int size, String text) {
+		if (size != text.length())
+			return false;
+		for (int i = 0; i < size; i++)
+			if (charAt(from + i) != text.charAt(i))
+				return false;
+		return true;
 	}
 
 	public Token tokenType() {
@@ -166,75 +169,45 @@ public class Tokenizer {
 
 	// CONSTRAINT: only called when tokenType == SYMBOL
 	public Character symbol() {
-		return currentToken.charAt(0);
+		return charAt(start);
 	}
 
 	// CONSTRAINT: only called when tokentype = KEYWORD
 	public Keyword keyword() throws Exception {
-		switch (currentToken) {
-		case "class":
-			return Keyword.CLASS;
-		case "method":
-			return Keyword.METHOD;
-		case "function":
-			return Keyword.FUNCTION;
-		case "constructor":
-			return Keyword.CONSTRUCTOR;
-		case "int":
-			return Keyword.INT;
-		case "boolean":
-			return Keyword.BOOLEAN;
-		case "char":
-			return Keyword.CHAR;
-		case "void":
-			return Keyword.VOID;
-		case "var":
-			return Keyword.VAR;
-		case "static":
-			return Keyword.STATIC;
-		case "field":
-			return Keyword.FIELD;
-		case "let":
-			return Keyword.LET;
-		case "do":
-			return Keyword.DO;
-		case "if":
-			return Keyword.IF;
-		case "else":
-			return Keyword.ELSE;
-		case "while":
-			return Keyword.WHILE;
-		case "return":
-			return Keyword.RETURN;
-		case "true":
-			return Keyword.TRUE;
-		case "false":
-			return Keyword.FALSE;
-		case "null":
-			return Keyword.NULL;
-		case "this":
-			return Keyword.THIS;
-		default:
-			throw new Exception("Unknown keyword: '" + currentToken + '\'');
-		}
+		if (keyword == null)
+			throw new Exception("Unknown keyword: '" + val() + '\'');
+		return keyword;
 	}
 
 	// CONSTRAINT: only called when tokenType == INT_CONST
 	public int intVal() {
-		return Integer.parseInt(currentToken);
+		return value;
 	}
 
 	// only called when tokenType == IDENTIFIER | STRING_CONST, or when
 	// throwing an exception
 	public String val() {
 		if (tokenType == Token.STRING_CONST)
-			return currentToken.substring(1, currentToken.length() - 1);
-		return currentToken;
+			return text(start + 1, length - 2);
+		return text(start, length);
+	}
+
+	private String text(int from, int size) {
+		char[] chars = new char[size];
+		for (int i = 0; i < size; i++)
+			chars[i] = charAt(from + i);
+		return new String(chars);
 	}
 
-	// put a token back into the stream
+	// put the current token back into the stream
 	public void returnToken() {
-		stream.addFirst(currentToken);
+		returned = true;
+	}
+
+	// stop scanning ahead (in pipelined mode), ex. after a syntax error
+	public void close() {
+		if (stage != null)
+			stage.close();
 	}
 
 }
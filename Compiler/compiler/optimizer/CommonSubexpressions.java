@@ -0,0 +1,280 @@
+package optimizer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ast.ClassTree;
+import ast.Op;
+import ast.Subroutine;
+import writer.Segment;
+
+// Common subexpression elimination within a statement: an expression that is
+// worked out more than once by the same statement (ex. 'x * y + (x * y)', or
+// 'a[i + 1] - a[i + 1]') is computed once, into a new local, just before the
+// statement, and the local is read in its place.
+// Jack evaluates a statement left to right (the address of an array target
+// before the value). Computing an expression early only changes its value if
+// something evaluated before it has a side effect, and the only things that
+// do are calls we know nothing about and string constants (which build a
+// string on the heap). Those cannot change locals or arguments, but they can
+// change statics, fields and array entries, so an expression that reads them is
+// only shared by its occurrences before the first such call. Expressions that
+// have side effects themselves, or can stop the program (a division by a
+// variable), are never moved (see LoopInvariants for the purity of calls).
+// While conditions are left alone: they are evaluated on every iteration, not
+// once before the loop
+public class CommonSubexpressions implements Pass {
+
+	private static final int STATIC = Segment.STATIC.ordinal();
+	private static final int THIS = Segment.THIS.ordinal();
+
+	// a rough count of the VM commands it takes to compute an expression; one worth
+	// less than this costs about as much to store and read back as to compute again
+	private static final int MIN_COST = 4;
+	// what a call costs on top of its arguments (saving the caller's frame alone
+	// takes five pushes)
+	private static final int CALL_COST = 10;
+
+	public String name() {
+		return "cse";
+	}
+
+	public int run(ClassTree tree) {
+		Map<String, Purity> purity = LoopInvariants.purity(tree);
+		int[] changes = new int[1];
+		for (Subroutine subroutine : tree.subroutines)
+			subroutine.body = shareStatements(tree, subroutine, purity, subroutine.body, changes);
+		return changes[0];
+	}
+
+	// share the repeated expressions of every statement in the list starting at n;
+	// produces the new head of the list
+	private int shareStatements(ClassTree tree, Subroutine subroutine, Map<String, Purity> purity, int n,
+			int[] changes) {
+		// the statements that go before a statement: its shared expressions
+		return NewLocals.insertBefore(tree, n, (statement, shared) -> {
+			if (tree.op(statement) == Op.IF) {
+				tree.setB(statement, shareStatements(tree, subroutine, purity, tree.b(statement), changes));
+				tree.setC(statement, shareStatements(tree, subroutine, purity, tree.c(statement), changes));
+			} else if (tree.op(statement) == Op.WHILE) {
+				tree.setB(statement, shareStatements(tree, subroutine, purity, tree.b(statement), changes));
+			}
+			shareStatement(tree, subroutine, purity, statement, shared, changes);
+		});
+	}
+
+	// share the repeated expressions of statement n, appending the assignments of
+	// the new locals to the shared list (whose head and tail are given)
+	private void shareStatement(ClassTree tree, Subroutine subroutine, Map<String, Purity> purity, int n,
+			int[] shared, int[] changes) {
+		// every expression node the statement evaluates, in the order they are
+		// evaluated, and the place of the first one with side effects
+		List<Integer> nodes = new ArrayList<Integer>();
+		int target = ClassTree.NONE;
+		switch (tree.op(n)) {
+		case LET:
+			target = tree.a(n);
+			if (tree.op(target) == Op.INDEX) {
+				tree.postOrder(tree.a(target), k -> nodes.add(k));
+				tree.postOrder(tree.b(target), k -> nodes.add(k));
+			}
+			tree.postOrder(tree.b(n), k -> nodes.add(k));
+			break;
+		case DO:
+			// (the call itself comes last, so only its arguments matter)
+			tree.postOrder(tree.b(tree.a(n)), k -> nodes.add(k));
+			break;
+		case IF:
+			tree.postOrder(tree.a(n), k -> nodes.add(k));
+			break;
+		case RETURN:
+			if (tree.a(n) != ClassTree.NONE)
+				tree.postOrder(tree.a(n), k -> nodes.add(k));
+			break;
+		default:
+			return;
+		}
+		int firstEffect = nodes.size();
+		for (int i = nodes.size() - 1; i >= 0; i--)
+			if (hasEffect(tree, purity, nodes.get(i)))
+				firstEffect = i;
+
+		// the biggest expressions first, so their parts are not shared separately
+		List<Integer> candidates = new ArrayList<Integer>();
+		for (int k : nodes)
+			if (isShareable(tree, purity, k) && cost(tree, k) >= MIN_COST
+					&& (target == ClassTree.NONE || !same(tree, k, target)))
+				candidates.add(k);
+		candidates.sort((x, y) -> size(tree, y) - size(tree, x));
+
+		// nodes that belong to an expression that was already shared
+		Set<Integer> done = new HashSet<Integer>();
+		for (int candidate : candidates) {
+			if (done.contains(candidate))
+				continue;
+			// reading memory early is only safe before the first side effect
+			int end = readsMemory(tree, purity, candidate) ? firstEffect : nodes.size();
+			List<Integer> occurrences = new ArrayList<Integer>();
+			for (int i = 0; i < end; i++) {
+				int k = nodes.get(i);
+				if (!done.contains(k) && same(tree, candidate, k))
+					occurrences.add(k);
+			}
+			if (occurrences.size() < 2)
+				continue;
+
+			for (int k : occurrences)
+				markSubtree(tree, k, done);
+			int first = occurrences.get(0);
+			int let = NewLocals.assign(tree, subroutine, first);
+			for (int k : occurrences)
+				tree.set(k, Op.VAR, tree.a(first), tree.b(first), 0);
+			// the value may repeat parts of itself (ex. '(x * y) + (x * y)' twice)
+			shareStatement(tree, subroutine, purity, let, shared, changes);
+			NewLocals.append(tree, shared, let);
+			changes[0]++;
+		}
+	}
+
+	// produces true iff evaluating node n (not counting its operands) may change
+	// memory
+	private boolean hasEffect(ClassTree tree, Map<String, Purity> purity, int n) {
+		switch (tree.op(n)) {
+		case STRING:
+		case POOLED_STRING:
+			return true;
+		case CALL:
+			Purity callee = purity.get(tree.string(tree.a(n)));
+			return callee == null || callee == Purity.IMPURE;
+		default:
+			return false;
+		}
+	}
+
+	// produces true iff expression n can be computed early, and only once: it has
+	// no side effects and always finishes
+	private boolean isShareable(ClassTree tree, Map<String, Purity> purity, int n) {
+		switch (tree.op(n)) {
+		case CONST:
+		case THIS:
+		case VAR:
+			return true;
+		case BINARY:
+			if (tree.c(n) == '/' && !LoopInvariants.isSafeDivisor(tree, tree.b(n)))
+				return false;
+			return isShareable(tree, purity, tree.a(n)) && isShareable(tree, purity, tree.b(n));
+		case INDEX:
+			return isShareable(tree, purity, tree.a(n)) && isShareable(tree, purity, tree.b(n));
+		case UNARY:
+		case MUL_CONST:
+		case DIV_POW2:
+			return isShareable(tree, purity, tree.a(n));
+		case CALL:
+			if (hasEffect(tree, purity, n))
+				return false;
+			for (int arg = tree.b(n); arg != ClassTree.NONE; arg = tree.next(arg))
+				if (!isShareable(tree, purity, arg))
+					return false;
+			return true;
+		default:
+			// strings are a new object every time
+			return false;
+		}
+	}
+
+	// produces true iff the value of shareable expression n depends on memory that
+	// a call could change: statics, fields and array entries (a keyboard read is
+	// taken once for the whole statement, which no program can tell apart)
+	private boolean readsMemory(ClassTree tree, Map<String, Purity> purity, int n) {
+		switch (tree.op(n)) {
+		case VAR:
+			return tree.a(n) == STATIC || tree.a(n) == THIS;
+		case INDEX:
+			return true;
+		case BINARY:
+			return readsMemory(tree, purity, tree.a(n)) || readsMemory(tree, purity, tree.b(n));
+		case UNARY:
+		case MUL_CONST:
+		case DIV_POW2:
+			return readsMemory(tree, purity, tree.a(n));
+		case CALL:
+			if (purity.get(tree.string(tree.a(n))) != Purity.PURE)
+				return true;
+			for (int arg = tree.b(n); arg != ClassTree.NONE; arg = tree.next(arg))
+				if (readsMemory(tree, purity, arg))
+					return true;
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	// roughly how many VM commands it takes to compute expression n
+	private int cost(ClassTree tree, int n) {
+		switch (tree.op(n)) {
+		case BINARY:
+			int operands = cost(tree, tree.a(n)) + cost(tree, tree.b(n));
+			return operands + (tree.c(n) == '*' || tree.c(n) == '/' ? CALL_COST : 1);
+		case INDEX:
+			// add, pop pointer 1, push that 0
+			return cost(tree, tree.a(n)) + cost(tree, tree.b(n)) + 3;
+		case UNARY:
+			return cost(tree, tree.a(n)) + 1;
+		case MUL_CONST:
+			return cost(tree, tree.a(n)) + 3;
+		case DIV_POW2:
+			return cost(tree, tree.a(n)) + CALL_COST;
+		case CALL:
+			int cost = CALL_COST;
+			for (int arg = tree.b(n); arg != ClassTree.NONE; arg = tree.next(arg))
+				cost += cost(tree, arg);
+			return cost;
+		default:
+			return 1;
+		}
+	}
+
+	// number of nodes in expression n
+	private int size(ClassTree tree, int n) {
+		Op op = tree.op(n);
+		int size = 1;
+		if (op.aChild)
+			for (int k = tree.a(n); k != ClassTree.NONE; k = tree.next(k))
+				size += size(tree, k);
+		if (op.bChild)
+			for (int k = tree.b(n); k != ClassTree.NONE; k = tree.next(k))
+				size += size(tree, k);
+		return size;
+	}
+
+	private void markSubtree(ClassTree tree, int n, Set<Integer> marked) {
+		Op op = tree.op(n);
+		marked.add(n);
+		if (op.aChild)
+			for (int k = tree.a(n); k != ClassTree.NONE; k = tree.next(k))
+				markSubtree(tree, k, marked);
+		if (op.bChild)
+			for (int k = tree.b(n); k != ClassTree.NONE; k = tree.next(k))
+				markSubtree(tree, k, marked);
+	}
+
+	// produces true iff expressions n and k are written the same way
+	private boolean same(ClassTree tree, int n, int k) {
+		Op op = tree.op(n);
+		if (op != tree.op(k) || tree.c(n) != tree.c(k))
+			return false;
+		if (op.aChild ? !sameList(tree, tree.a(n), tree.a(k)) : tree.a(n) != tree.a(k))
+			return false;
+		return op.bChild ? sameList(tree, tree.b(n), tree.b(k)) : tree.b(n) == tree.b(k);
+	}
+
+	private boolean sameList(ClassTree tree, int n, int k) {
+		for (; n != ClassTree.NONE && k != ClassTree.NONE; n = tree.next(n), k = tree.next(k))
+			if (!same(tree, n, k))
+				return false;
+		return n == k;
+	}
+}
@@ -0,0 +1,261 @@
+package optimizer;
+
+import ast.ClassTree;
+import ast.Op;
+import ast.Subroutine;
+
+// Evaluates constant subexpressions at compile time and applies algebraic
+// identities (x + 0, x * 1, ~~x, ...). Folded values follow the Hack machine:
+// arithmetic wraps around at 16 bits, and comparisons are decided the way the
+// VM translator decides them (by the sign of y - x, which can overflow), so a
+// folded expression always has the value it would have had at run time.
+// Expressions are already nested to the left (Jack has no precedence), and we
+// only drop an operand whose evaluation has no side effects (see isPure).
+// if/while statements whose condition folds to a constant lose the branch that
+// can never run
+public class ConstantFolding implements Pass {
+
+	public String name() {
+		return "fold";
+	}
+
+	public int run(ClassTree tree) {
+		int[] changes = new int[1];
+		for (Subroutine subroutine : tree.subroutines) {
+			tree.postOrder(subroutine.body, n -> {
+				if (!tree.op(n).isStatement() && fold(tree, n))
+					changes[0]++;
+			});
+			subroutine.body = foldStatements(tree, subroutine.body, changes);
+		}
+		return changes[0];
+	}
+
+	private static int wrap(int value) {
+		return (short) value;
+	}
+
+	private static boolean isConst(ClassTree tree, int n) {
+		return tree.op(n) == Op.CONST;
+	}
+
+	private static boolean isConst(ClassTree tree, int n, int value) {
+		return tree.op(n) == Op.CONST && tree.a(n) == value;
+	}
+
+	// produces true iff evaluating n can have no side effect (no calls, and no
+	// string constants, which allocate), so it can be dropped
+	public static boolean isPure(ClassTree tree, int n) {
+		boolean[] pure = { true };
+		tree.postOrder(n, k -> pure[0] &= tree.op(k) != Op.CALL && tree.op(k) != Op.STRING);
+		return pure[0];
+	}
+
+	// overwrite n with a copy of node k (n keeps its place in its list)
+	private static void replace(ClassTree tree, int n, int k) {
+		tree.set(n, tree.op(k), tree.a(k), tree.b(k), tree.c(k));
+	}
+
+	private static void constant(ClassTree tree, int n, int value) {
+		tree.set(n, Op.CONST, wrap(value), 0, 0);
+	}
+
+	// simplify expression node n, whose operands are already simplified; produces
+	// true if n changed
+	private boolean fold(ClassTree tree, int n) {
+		if (tree.op(n) == Op.UNARY)
+			return foldUnary(tree, n);
+		if (tree.op(n) == Op.BINARY)
+			return foldBinary(tree, n);
+		return false;
+	}
+
+	private boolean foldUnary(ClassTree tree, int n) {
+		int x = tree.a(n);
+		char op = (char) tree.c(n);
+		if (isConst(tree, x)) {
+			constant(tree, n, op == '-' ? -tree.a(x) : ~tree.a(x));
+			return true;
+		}
+		// ~~x = x, -(-x) = x
+		if (tree.op(x) == Op.UNARY && tree.c(x) == op) {
+			replace(tree, n, tree.a(x));
+			return true;
+		}
+		return false;
+	}
+
+	private boolean foldBinary(ClassTree tree, int n) {
+		int x = tree.a(n);
+		int y = tree.b(n);
+		char op = (char) tree.c(n);
+
+		if (isConst(tree, x) && isConst(tree, y)) {
+			int a = tree.a(x);
+			int b = tree.a(y);
+			switch (op) {
+			case '+':
+				constant(tree, n, a + b);
+				return true;
+			case '-':
+				constant(tree, n, a - b);
+				return true;
+			case '*':
+				constant(tree, n, a * b);
+				return true;
+			case '/':
+				// leave the corner cases to Math.divide
+				if (b == 0 || a == Short.MIN_VALUE || b == Short.MIN_VALUE)
+					return false;
+				constant(tree, n, a / b);
+				return true;
+			case '&':
+				constant(tree, n, a & b);
+				return true;
+			case '|':
+				constant(tree, n, a | b);
+				return true;
+			case '=':
+				constant(tree, n, a == b ? -1 : 0);
+				return true;
+			case '<':
+				constant(tree, n, wrap(b - a) > 0 ? -1 : 0);
+				return true;
+			case '>':
+				constant(tree, n, wrap(b - a) < 0 ? -1 : 0);
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		// (x +- c1) +- c2 = x +- (c1 +- c2); wrap-around arithmetic is associative
+		if ((op == '+' || op == '-') && isConst(tree, y) && tree.op(x) == Op.BINARY
+				&& (tree.c(x) == '+' || tree.c(x) == '-') && isConst(tree, tree.b(x))) {
+			int offset = wrap((tree.c(x) == '+' ? tree.a(tree.b(x)) : -tree.a(tree.b(x)))
+					+ (op == '+' ? tree.a(y) : -tree.a(y)));
+			// prefer subtracting a positive constant to adding a negative one (the VM has
+			// no negative constants)
+			boolean subtract = offset < 0 && offset != Short.MIN_VALUE;
+			tree.set(n, Op.BINARY, tree.a(x), y, subtract ? '-' : '+');
+			constant(tree, y, subtract ? -offset : offset);
+			foldBinary(tree, n);
+			return true;
+		}
+
+		switch (op) {
+		case '+':
+			// x + 0 = 0 + x = x
+			if (isConst(tree, y, 0))
+				return keep(tree, n, x);
+			if (isConst(tree, x, 0))
+				return keep(tree, n, y);
+			break;
+		case '-':
+			// x - 0 = x, 0 - x = -x
+			if (isConst(tree, y, 0))
+				return keep(tree, n, x);
+			if (isConst(tree, x, 0)) {
+				tree.set(n, Op.UNARY, y, 0, '-');
+				foldUnary(tree, n);
+				return true;
+			}
+			break;
+		case '*':
+			// x * 1 = 1 * x = x, x * 0 = 0 * x = 0, x * -1 = -x
+			if (isConst(tree, y, 1))
+				return keep(tree, n, x);
+			if (isConst(tree, x, 1))
+				return keep(tree, n, y);
+			if (isConst(tree, y, 0) && isPure(tree, x) || isConst(tree, x, 0) && isPure(tree, y)) {
+				constant(tree, n, 0);
+				return true;
+			}
+			if (isConst(tree, y, -1)) {
+				tree.set(n, Op.UNARY, x, 0, '-');
+				foldUnary(tree, n);
+				return true;
+			}
+			break;
+		case '/':
+			// x / 1 = x
+			if (isConst(tree, y, 1))
+				return keep(tree, n, x);
+			break;
+		case '&':
+			// x & -1 = -1 & x = x, x & 0 = 0 & x = 0
+			if (isConst(tree, y, -1))
+				return keep(tree, n, x);
+			if (isConst(tree, x, -1))
+				return keep(tree, n, y);
+			if (isConst(tree, y, 0) && isPure(tree, x) || isConst(tree, x, 0) && isPure(tree, y)) {
+				constant(tree, n, 0);
+				return true;
+			}
+			break;
+		case '|':
+			// x | 0 = 0 | x = x, x | -1 = -1 | x = -1
+			if (isConst(tree, y, 0))
+				return keep(tree, n, x);
+			if (isConst(tree, x, 0))
+				return keep(tree, n, y);
+			if (isConst(tree, y, -1) && isPure(tree, x) || isConst(tree, x, -1) && isPure(tree, y)) {
+				constant(tree, n, -1);
+				return true;
+			}
+			break;
+		}
+		return false;
+	}
+
+	// replace n by its operand k
+	private boolean keep(ClassTree tree, int n, int k) {
+		replace(tree, n, k);
+		return true;
+	}
+
+	// drop the branches of the statement list starting at n that can never run;
+	// produces the new head of the list
+	private int foldStatements(ClassTree tree, int n, int[] changes) {
+		int head = ClassTree.NONE;
+		int tail = ClassTree.NONE;
+		while (n != ClassTree.NONE) {
+			int next = tree.next(n);
+			// the statements that take n's place
+			int first = n;
+			if (tree.op(n) == Op.IF) {
+				tree.setB(n, foldStatements(tree, tree.b(n), changes));
+				tree.setC(n, foldStatements(tree, tree.c(n), changes));
+				if (isConst(tree, tree.a(n))) {
+					// a condition is only true when it is -1 (see CodeGenerator.generateBranch)
+					first = isConst(tree, tree.a(n), -1) ? tree.b(n) : tree.c(n);
+					changes[0]++;
+				}
+			} else if (tree.op(n) == Op.WHILE) {
+				tree.setB(n, foldStatements(tree, tree.b(n), changes));
+				if (isConst(tree, tree.a(n), 0)) {
+					first = ClassTree.NONE;
+					changes[0]++;
+				}
+			}
+
+			if (first != ClassTree.NONE) {
+				if (head == ClassTree.NONE)
+					head = first;
+				else
+					tree.setNext(tail, first);
+				if (first == n) {
+					tail = n;
+				} else {
+					tail = first;
+					while (tree.next(tail) != ClassTree.NONE)
+						tail = tree.next(tail);
+				}
+			}
+			n = next;
+		}
+		if (tail != ClassTree.NONE)
+			tree.setNext(tail, ClassTree.NONE);
+		return head;
+	}
+}
@@ -0,0 +1,151 @@
+package optimizer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import ast.ClassTree;
+import ast.Op;
+import ast.Subroutine;
+import writer.Segment;
+
+// Renumbers the locals of every subroutine so that locals that are never live
+// at the same time share a slot, which shrinks the frame (every slot costs a
+// push of 0 on every call). A local is live where the value it holds may still
+// be read; two locals can share a slot unless one of them is assigned while the
+// other is live (found by a backward liveness pass over each subroutine, which
+// goes around while loops until nothing changes). Locals that are never used
+// at all get no slot.
+// Locals that are live on entry (read before they are written on some path,
+// so they rely on starting out as 0) get the lowest slots; the VM translator
+// only zeroes the slots that need it (see vm.LocalInit), and a run of them at
+// the start of the frame is the cheapest to set up
+public class LocalSlots implements Pass {
+
+	private static final int LOCAL = Segment.LOCAL.ordinal();
+
+	public String name() {
+		return "locals";
+	}
+
+	public int run(ClassTree tree) {
+		int changes = 0;
+		for (Subroutine subroutine : tree.subroutines) {
+			int numLocals = subroutine.numLocals;
+			// interferes[x] holds the locals that may not share a slot with x
+			BitSet[] interferes = new BitSet[numLocals];
+			for (int x = 0; x < numLocals; x++)
+				interferes[x] = new BitSet(numLocals);
+			BitSet live = liveBefore(tree, subroutine.body, new BitSet(numLocals), interferes);
+
+			BitSet used = new BitSet(numLocals);
+			tree.postOrder(subroutine.body, n -> {
+				if (isLocal(tree, n))
+					used.set(tree.b(n));
+			});
+
+			// greedy colouring; live-on-entry locals first
+			List<Integer> order = new ArrayList<Integer>();
+			for (int x = live.nextSetBit(0); x >= 0; x = live.nextSetBit(x + 1))
+				order.add(x);
+			for (int x = used.nextSetBit(0); x >= 0; x = used.nextSetBit(x + 1))
+				if (!live.get(x))
+					order.add(x);
+			int[] slots = new int[numLocals];
+			int numSlots = 0;
+			for (int x : order) {
+				BitSet taken = new BitSet();
+				for (int y = interferes[x].nextSetBit(0); y >= 0; y = interferes[x].nextSetBit(y + 1))
+					if (slots[y] > 0)
+						taken.set(slots[y] - 1);
+				// (slots holds slot + 1, so that 0 means 'not assigned yet')
+				slots[x] = taken.nextClearBit(0) + 1;
+				numSlots = Math.max(numSlots, slots[x]);
+			}
+
+			tree.postOrder(subroutine.body, n -> {
+				if (isLocal(tree, n))
+					tree.setB(n, slots[tree.b(n)] - 1);
+			});
+			changes += numLocals - numSlots;
+			subroutine.numLocals = numSlots;
+		}
+		return changes;
+	}
+
+	private static boolean isLocal(ClassTree tree, int n) {
+		return tree.op(n) == Op.VAR && tree.a(n) == LOCAL;
+	}
+
+	// add the locals read by expression n (which is not part of a list) to live
+	private static void addUses(ClassTree tree, int n, BitSet live) {
+		tree.postOrder(n, k -> {
+			if (isLocal(tree, k))
+				live.set(tree.b(k));
+		});
+	}
+
+	// produces the locals live before the statement list starting at n, given the
+	// ones live after it; records interferences along the way
+	private BitSet liveBefore(ClassTree tree, int n, BitSet liveAfter, BitSet[] interferes) {
+		List<Integer> statements = new ArrayList<Integer>();
+		for (; n != ClassTree.NONE; n = tree.next(n))
+			statements.add(n);
+
+		BitSet live = (BitSet) liveAfter.clone();
+		for (int i = statements.size() - 1; i >= 0; i--) {
+			int statement = statements.get(i);
+			switch (tree.op(statement)) {
+			case LET:
+				int target = tree.a(statement);
+				if (isLocal(tree, target)) {
+					int x = tree.b(target);
+					for (int y = live.nextSetBit(0); y >= 0; y = live.nextSetBit(y + 1)) {
+						if (y != x) {
+							interferes[x].set(y);
+							interferes[y].set(x);
+						}
+					}
+					live.clear(x);
+				} else if (tree.op(target) == Op.INDEX) {
+					addUses(tree, tree.a(target), live);
+					addUses(tree, tree.b(target), live);
+				}
+				addUses(tree, tree.b(statement), live);
+				break;
+			case DO:
+				addUses(tree, tree.a(statement), live);
+				break;
+			case RETURN:
+				// nothing after a return runs
+				live.clear();
+				addUses(tree, tree.a(statement), live);
+				break;
+			case IF:
+				BitSet thenLive = liveBefore(tree, tree.b(statement), live, interferes);
+				live = liveBefore(tree, tree.c(statement), live, interferes);
+				live.or(thenLive);
+				addUses(tree, tree.a(statement), live);
+				break;
+			case WHILE:
+				// live at the test: what the condition reads, what is live after the loop,
+				// and what is live at the start of the body, which loops back to the test
+				BitSet test = (BitSet) live.clone();
+				addUses(tree, tree.a(statement), test);
+				while (true) {
+					BitSet next = liveBefore(tree, tree.b(statement), test, interferes);
+					next.or(live);
+					addUses(tree, tree.a(statement), next);
+					if (next.equals(test))
+						break;
+					test = next;
+				}
+				live = test;
+				break;
+			default:
+				break;
+			}
+		}
+		return live;
+	}
+}
@@ -0,0 +1,27 @@
+package optimizer;
+
+import java.util.HashSet;
+import java.util.Set;
+
+// what running the statements of a loop may change (see LoopInvariants)
+public class LoopEffects {
+
+	// the variables the loop assigns to, as (Segment ordinal << 16) | index
+	public Set<Integer> assigned;
+	// true iff the loop may write to memory: array entries, fields (an array store
+	// may alias them), or anything at all through a call
+	public boolean writesMemory;
+	// true iff the loop makes a call that may have side effects (which can assign
+	// to statics)
+	public boolean calls;
+
+	public LoopEffects() {
+		assigned = new HashSet<Integer>();
+		writesMemory = false;
+		calls = false;
+	}
+
+	public static int key(int segment, int index) {
+		return segment << 16 | index;
+	}
+}
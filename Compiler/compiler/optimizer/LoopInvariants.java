@@ -0,0 +1,251 @@
+package optimizer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ast.ClassTree;
+import ast.Op;
+import ast.Subroutine;
+import compiler.tokenizer.Keyword;
+import writer.Segment;
+
+// Loop-invariant code motion: an expression in a while loop (its condition or
+// body) that gives the same value on every iteration and has no side effects is
+// computed once, into a new local, before the loop. Inner loops go first, so an
+// expression can move out through several loops, one at a time.
+// An expression is invariant when the loop assigns none of its variables, and
+// (for fields and statics) makes no call or store that could change them. Calls
+// can move too when they are known not to have side effects (see Purity): a few
+// OS subroutines, and this class's functions that only compute with their
+// arguments. We know nothing about other classes, which are compiled separately
+// (and maybe not even recompiled when this one is, see BuildCache), so calls to
+// them stay put.
+// Array entries never move: an array can point at the keyboard register, which
+// changes under our feet
+public class LoopInvariants implements Pass {
+
+	private static final int STATIC = Segment.STATIC.ordinal();
+	private static final int THIS = Segment.THIS.ordinal();
+
+	// OS subroutines whose behaviour the OS API pins down
+	private static final Map<String, Purity> OS = new HashMap<String, Purity>();
+	static {
+		OS.put("Math.abs", Purity.PURE);
+		OS.put("Math.min", Purity.PURE);
+		OS.put("Math.max", Purity.PURE);
+		OS.put("Math.multiply", Purity.PURE);
+		OS.put("String.length", Purity.READS);
+	}
+
+	public String name() {
+		return "licm";
+	}
+
+	public int run(ClassTree tree) {
+		Map<String, Purity> purity = purity(tree);
+		int[] changes = new int[1];
+		for (Subroutine subroutine : tree.subroutines)
+			subroutine.body = hoistStatements(tree, subroutine, purity, subroutine.body, changes);
+		return changes[0];
+	}
+
+	// the purity of every subroutine we know about: the OS ones above, and the
+	// functions of this class that pass isPure. A function is only marked once
+	// everything it calls is, so recursive ones never are (they might not return)
+	static Map<String, Purity> purity(ClassTree tree) {
+		Map<String, Purity> purity = new HashMap<String, Purity>(OS);
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Subroutine subroutine : tree.subroutines) {
+				if (subroutine.kind == Keyword.FUNCTION && !purity.containsKey(subroutine.name)
+						&& isPure(tree, subroutine.body, purity)) {
+					purity.put(subroutine.name, Purity.PURE);
+					changed = true;
+				}
+			}
+		}
+		return purity;
+	}
+
+	// produces true iff the statements starting at n only compute with arguments,
+	// locals and constants, and always finish without an error
+	private static boolean isPure(ClassTree tree, int n, Map<String, Purity> purity) {
+		boolean[] pure = { true };
+		tree.postOrder(n, k -> {
+			switch (tree.op(k)) {
+			case WHILE:
+			case INDEX:
+			case STRING:
+			case POOLED_STRING:
+			case THIS:
+				pure[0] = false;
+				break;
+			case VAR:
+				pure[0] &= tree.a(k) != STATIC && tree.a(k) != THIS;
+				break;
+			case BINARY:
+				pure[0] &= tree.c(k) != '/' || isSafeDivisor(tree, tree.b(k));
+				break;
+			case CALL:
+				pure[0] &= purity.get(tree.string(tree.a(k))) == Purity.PURE;
+				break;
+			default:
+				break;
+			}
+		});
+		return pure[0];
+	}
+
+	// Math.divide stops the program on a division by 0
+	static boolean isSafeDivisor(ClassTree tree, int n) {
+		return tree.op(n) == Op.CONST && tree.a(n) != 0;
+	}
+
+	// hoist the invariants out of the loops in the statement list starting at n;
+	// produces the new head of the list
+	private int hoistStatements(ClassTree tree, Subroutine subroutine, Map<String, Purity> purity, int n,
+			int[] changes) {
+		// the statements that go before a loop: its hoisted invariants
+		return NewLocals.insertBefore(tree, n, (statement, hoisted) -> {
+			if (tree.op(statement) == Op.IF) {
+				tree.setB(statement, hoistStatements(tree, subroutine, purity, tree.b(statement), changes));
+				tree.setC(statement, hoistStatements(tree, subroutine, purity, tree.c(statement), changes));
+			} else if (tree.op(statement) == Op.WHILE) {
+				tree.setB(statement, hoistStatements(tree, subroutine, purity, tree.b(statement), changes));
+				LoopEffects effects = effects(tree, statement, purity);
+				hoistExpression(tree, subroutine, purity, effects, tree.a(statement), hoisted);
+				hoistLoop(tree, subroutine, purity, effects, tree.b(statement), hoisted);
+				if (hoisted[0] != ClassTree.NONE)
+					changes[0]++;
+			}
+		});
+	}
+
+	// what the loop n may change
+	private LoopEffects effects(ClassTree tree, int n, Map<String, Purity> purity) {
+		LoopEffects effects = new LoopEffects();
+		// (postOrder walks the rest of a list too, so visit the loop's parts)
+		for (int part : new int[] { tree.a(n), tree.b(n) })
+			tree.postOrder(part, k -> {
+				switch (tree.op(k)) {
+				case LET:
+					int target = tree.a(k);
+					if (tree.op(target) == Op.VAR)
+						effects.assigned.add(LoopEffects.key(tree.a(target), tree.b(target)));
+					if (tree.op(target) == Op.INDEX || tree.a(target) == THIS)
+						effects.writesMemory = true;
+					break;
+				case STRING:
+				case POOLED_STRING:
+					// building a string writes to the heap
+					effects.writesMemory = true;
+					break;
+				case CALL:
+					Purity callee = purity.get(tree.string(tree.a(k)));
+					if (callee == null || callee == Purity.IMPURE) {
+						effects.writesMemory = true;
+						effects.calls = true;
+					}
+					break;
+				default:
+					break;
+				}
+			});
+		return effects;
+	}
+
+	// hoist the invariants out of the expressions of the statement list starting
+	// at n, which is (part of) a loop body
+	private void hoistLoop(ClassTree tree, Subroutine subroutine, Map<String, Purity> purity, LoopEffects effects,
+			int n, int[] hoisted) {
+		for (; n != ClassTree.NONE; n = tree.next(n)) {
+			switch (tree.op(n)) {
+			case LET:
+				int target = tree.a(n);
+				if (tree.op(target) == Op.INDEX) {
+					hoistExpression(tree, subroutine, purity, effects, tree.a(target), hoisted);
+					hoistExpression(tree, subroutine, purity, effects, tree.b(target), hoisted);
+				}
+				hoistExpression(tree, subroutine, purity, effects, tree.b(n), hoisted);
+				break;
+			case DO:
+				// the call itself has to happen, but its arguments may move
+				for (int arg = tree.b(tree.a(n)); arg != ClassTree.NONE; arg = tree.next(arg))
+					hoistExpression(tree, subroutine, purity, effects, arg, hoisted);
+				break;
+			case IF:
+				hoistExpression(tree, subroutine, purity, effects, tree.a(n), hoisted);
+				hoistLoop(tree, subroutine, purity, effects, tree.b(n), hoisted);
+				hoistLoop(tree, subroutine, purity, effects, tree.c(n), hoisted);
+				break;
+			case WHILE:
+				hoistExpression(tree, subroutine, purity, effects, tree.a(n), hoisted);
+				hoistLoop(tree, subroutine, purity, effects, tree.b(n), hoisted);
+				break;
+			case RETURN:
+				if (tree.a(n) != ClassTree.NONE)
+					hoistExpression(tree, subroutine, purity, effects, tree.a(n), hoisted);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	// hoist expression n if it is invariant, or else its largest invariant parts
+	private void hoistExpression(ClassTree tree, Subroutine subroutine, Map<String, Purity> purity,
+			LoopEffects effects, int n, int[] hoisted) {
+		Op op = tree.op(n);
+		if (isInvariant(tree, purity, effects, n)) {
+			// moving a constant or a variable saves nothing
+			if (op != Op.CONST && op != Op.VAR && op != Op.THIS)
+				NewLocals.append(tree, hoisted, NewLocals.assign(tree, subroutine, n));
+			return;
+		}
+		if (op.aChild)
+			for (int k = tree.a(n); k != ClassTree.NONE; k = tree.next(k))
+				hoistExpression(tree, subroutine, purity, effects, k, hoisted);
+		if (op.bChild)
+			for (int k = tree.b(n); k != ClassTree.NONE; k = tree.next(k))
+				hoistExpression(tree, subroutine, purity, effects, k, hoisted);
+	}
+
+	// produces true iff expression n has the same value, and no side effects, on
+	// every iteration of a loop with the given effects
+	private boolean isInvariant(ClassTree tree, Map<String, Purity> purity, LoopEffects effects, int n) {
+		switch (tree.op(n)) {
+		case CONST:
+		case THIS:
+			return true;
+		case VAR:
+			int segment = tree.a(n);
+			if (effects.assigned.contains(LoopEffects.key(segment, tree.b(n))))
+				return false;
+			if (segment == STATIC)
+				return !effects.calls;
+			if (segment == THIS)
+				return !effects.writesMemory;
+			return true;
+		case BINARY:
+			if (tree.c(n) == '/' && !isSafeDivisor(tree, tree.b(n)))
+				return false;
+			return isInvariant(tree, purity, effects, tree.a(n)) && isInvariant(tree, purity, effects, tree.b(n));
+		case UNARY:
+		case MUL_CONST:
+		case DIV_POW2:
+			return isInvariant(tree, purity, effects, tree.a(n));
+		case CALL:
+			Purity callee = purity.get(tree.string(tree.a(n)));
+			if (callee != Purity.PURE && (callee != Purity.READS || effects.writesMemory))
+				return false;
+			for (int arg = tree.b(n); arg != ClassTree.NONE; arg = tree.next(arg))
+				if (!isInvariant(tree, purity, effects, arg))
+					return false;
+			return true;
+		default:
+			// array entries (see above), and strings, which are a new object every time
+			return false;
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package optimizer;
+
+import ast.ClassTree;
+import ast.Op;
+import ast.Subroutine;
+import writer.Segment;
+
+// Loop unrolling: the body of a counted loop
+//     while (i < bound) { ...; let i = i + step; }
+// is repeated factor times per iteration, so the test and jump run once for
+// every factor iterations instead of once for each. i has to be a local or an
+// argument (calls cannot change those), step a positive constant, and bound a
+// constant or a local or argument; the rest of the body must not assign i or
+// bound, and must not contain a loop (inner loops are unrolled instead).
+// The unrolled loop stops while at least a full round is left; the original
+// loop then does the last few iterations. When the loop starts right after
+// 'let i = <constant>' and the bound is a constant too, the number of iterations
+// is known: the leftover iterations are written out one after another, and a
+// loop of at most factor iterations disappears completely.
+// Jack's < subtracts its operands, and so gives the wrong answer when they are
+// far apart. Unless we know every value of i, the unrolled loop tests i < bound
+// as well as i < bound - (factor - 1) * step, so it never runs a round the
+// original loop would not have started.
+// Every copy of the body makes the program bigger, so a class only gets a
+// budget of nodes to add (loops that do not fit are left alone). The pass is
+// off unless asked for (see Compiler)
+public class LoopUnrolling implements Pass {
+
+	private static final int LOCAL = Segment.LOCAL.ordinal();
+	private static final int ARGUMENT = Segment.ARGUMENT.ordinal();
+
+	private int factor;
+	private int budget;
+
+	// consumes the number of copies of the body per iteration (at least 2), and
+	// the number of nodes a class may grow by
+	public LoopUnrolling(int factor, int budget) throws Exception {
+		if (factor < 2)
+			throw new Exception("Unroll factor must be at least 2");
+		this.factor = factor;
+		this.budget = budget;
+	}
+
+	public String name() {
+		return "unroll";
+	}
+
+	public int run(ClassTree tree) {
+		int[] changes = new int[1];
+		// nodes the class may still grow by
+		int[] left = { budget };
+		for (Subroutine subroutine : tree.subroutines)
+			subroutine.body = unrollStatements(tree, subroutine, subroutine.body, left, changes);
+		return changes[0];
+	}
+
+	// unroll the counted loops in the statement list starting at n (and inside
+	// its statements); produces the new head of the list
+	private int unrollStatements(ClassTree tree, Subroutine subroutine, int n, int[] left, int[] changes) {
+		int head = ClassTree.NONE;
+		int tail = ClassTree.NONE;
+		while (n != ClassTree.NONE) {
+			int next = tree.next(n);
+			// (so the statements that replace n end the list, see last)
+			tree.setNext(n, ClassTree.NONE);
+			int first = n;
+			if (tree.op(n) == Op.IF) {
+				tree.setB(n, unrollStatements(tree, subroutine, tree.b(n), left, changes));
+				tree.setC(n, unrollStatements(tree, subroutine, tree.c(n), left, changes));
+			} else if (tree.op(n) == Op.WHILE) {
+				tree.setB(n, unrollStatements(tree, subroutine, tree.b(n), left, changes));
+				if (isCounted(tree, n)) {
+					first = unroll(tree, subroutine, n, tail, left);
+					if (first != n)
+						changes[0]++;
+				}
+			}
+
+			if (head == ClassTree.NONE)
+				head = first;
+			else
+				tree.setNext(tail, first);
+			tail = last(tree, first);
+			n = next;
+		}
+		if (tail != ClassTree.NONE)
+			tree.setNext(tail, ClassTree.NONE);
+		return head;
+	}
+
+	// produces true iff while loop n has the form described above
+	private boolean isCounted(ClassTree tree, int n) {
+		int condition = tree.a(n);
+		if (tree.op(condition) != Op.BINARY || tree.c(condition) != '<')
+			return false;
+		int i = tree.a(condition);
+		int bound = tree.b(condition);
+		if (!isRegister(tree, i) || (tree.op(bound) != Op.CONST && !isRegister(tree, bound))
+				|| sameVar(tree, i, bound))
+			return false;
+		if (tree.b(n) == ClassTree.NONE || step(tree, last(tree, tree.b(n)), i) <= 0)
+			return false;
+
+		// the increment is the only assignment to i, and there are no inner loops
+		int[] assignsI = { 0 };
+		boolean[] counted = { true };
+		tree.postOrder(tree.b(n), k -> {
+			if (tree.op(k) == Op.WHILE)
+				counted[0] = false;
+			if (tree.op(k) == Op.LET && tree.op(tree.a(k)) == Op.VAR) {
+				if (sameVar(tree, tree.a(k), i))
+					assignsI[0]++;
+				if (sameVar(tree, tree.a(k), bound))
+					counted[0] = false;
+			}
+		});
+		return counted[0] && assignsI[0] == 1;
+	}
+
+	// a local or argument, which only the statements of its subroutine can change
+	private boolean isRegister(ClassTree tree, int n) {
+		return tree.op(n) == Op.VAR && (tree.a(n) == LOCAL || tree.a(n) == ARGUMENT);
+	}
+
+	private boolean sameVar(ClassTree tree, int n, int k) {
+		return tree.op(n) == Op.VAR && tree.op(k) == Op.VAR && tree.a(n) == tree.a(k) && tree.b(n) == tree.b(k);
+	}
+
+	// produces step if statement n is 'let i = i + step' (or 'step + i') for a
+	// constant step, or else 0
+	private int step(ClassTree tree, int n, int i) {
+		if (tree.op(n) != Op.LET || !sameVar(tree, tree.a(n), i))
+			return 0;
+		int value = tree.b(n);
+		if (tree.op(value) != Op.BINARY || tree.c(value) != '+')
+			return 0;
+		int x = tree.a(value);
+		int y = tree.b(value);
+		if (sameVar(tree, x, i) && tree.op(y) == Op.CONST)
+			return tree.a(y);
+		if (sameVar(tree, y, i) && tree.op(x) == Op.CONST)
+			return tree.a(x);
+		return 0;
+	}
+
+	// replace counted loop n, which follows statement previous (or NONE), by its
+	// unrolled form if that fits in the budget; produces the head of the
+	// statements to put in its place (n itself if it stays as it is)
+	private int unroll(ClassTree tree, Subroutine subroutine, int n, int previous, int[] left) {
+		int condition = tree.a(n);
+		int i = tree.a(condition);
+		int bound = tree.b(condition);
+		int body = tree.b(n);
+		int step = step(tree, last(tree, body), i);
+		int bodySize = size(tree, body);
+		// how much further than i the last copy of a round starts
+		int reach = (factor - 1) * step;
+		if (reach > Short.MAX_VALUE)
+			return n;
+
+		if (tree.op(bound) == Op.CONST && previous != ClassTree.NONE && tree.op(previous) == Op.LET
+				&& sameVar(tree, tree.a(previous), i) && tree.op(tree.b(previous)) == Op.CONST) {
+			// we know every value i takes, as long as the comparisons cannot go wrong
+			int start = tree.a(tree.b(previous));
+			int end = tree.a(bound);
+			if (end <= start || end - start > Short.MAX_VALUE || end + step > Short.MAX_VALUE)
+				return n;
+			int iterations = (end - start + step - 1) / step;
+			int rounds = iterations / factor;
+			int rest = iterations % factor;
+			if (iterations <= factor) {
+				// no loop at all
+				if (!spend(left, (iterations - 1) * bodySize - 4))
+					return n;
+				return copies(tree, body, iterations);
+			}
+			if (!spend(left, (factor + rest - 1) * bodySize))
+				return n;
+			int unrolled = loop(tree, lessThan(tree, i, constant(tree, start + rounds * factor * step)), body);
+			if (rest > 0)
+				tree.setNext(unrolled, copies(tree, body, rest));
+			return unrolled;
+		}
+
+		// the original loop does what is left after the unrolled one
+		int end;
+		int head = ClassTree.NONE;
+		if (tree.op(bound) == Op.CONST) {
+			end = constant(tree, (short) (tree.a(bound) - reach));
+		} else {
+			// compute bound - reach once, into a new local
+			int local = subroutine.numLocals++;
+			int target = tree.add(Op.VAR, LOCAL, local, 0);
+			tree.setType(target, tree.type(bound));
+			int value = tree.add(Op.BINARY, copy(tree, bound), constant(tree, reach), '-');
+			head = tree.add(Op.LET, target, value, 0);
+			end = tree.add(Op.VAR, LOCAL, local, 0);
+			tree.setType(end, tree.type(bound));
+		}
+		int test = both(tree, lessThan(tree, i, end), lessThan(tree, i, copy(tree, bound)));
+		if (!spend(left, factor * bodySize + size(tree, test) + (head == ClassTree.NONE ? 0 : 5)))
+			return n;
+		int unrolled = loop(tree, test, body);
+		tree.setNext(unrolled, n);
+		if (head == ClassTree.NONE)
+			return unrolled;
+		tree.setNext(head, unrolled);
+		return head;
+	}
+
+	// take nodes out of the budget; produces false (and takes nothing) if there
+	// are not enough left
+	private boolean spend(int[] left, int nodes) {
+		if (nodes > left[0])
+			return false;
+		left[0] -= nodes;
+		return true;
+	}
+
+	// produces a while loop with the given test, whose body is factor copies of
+	// the given body
+	private int loop(ClassTree tree, int test, int body) {
+		return tree.add(Op.WHILE, test, copies(tree, body, factor), 0);
+	}
+
+	// produces a list of count copies of the statement list body, one after
+	// another
+	private int copies(ClassTree tree, int body, int count) {
+		int head = ClassTree.NONE;
+		int tail = ClassTree.NONE;
+		for (int j = 0; j < count; j++) {
+			int copy = copyList(tree, body);
+			if (head == ClassTree.NONE)
+				head = copy;
+			else
+				tree.setNext(tail, copy);
+			tail = last(tree, copy);
+		}
+		return head;
+	}
+
+	private int lessThan(ClassTree tree, int i, int bound) {
+		return tree.add(Op.BINARY, copy(tree, i), bound, '<');
+	}
+
+	private int both(ClassTree tree, int x, int y) {
+		return tree.add(Op.BINARY, x, y, '&');
+	}
+
+	private int constant(ClassTree tree, int value) {
+		return tree.add(Op.CONST, value, 0, 0);
+	}
+
+	// produces a copy of node n and everything below it (not the rest of its list)
+	private int copy(ClassTree tree, int n) {
+		Op op = tree.op(n);
+		int a = op.aChild ? copyList(tree, tree.a(n)) : tree.a(n);
+		int b = op.bChild ? copyList(tree, tree.b(n)) : tree.b(n);
+		int c = op.cChild ? copyList(tree, tree.c(n)) : tree.c(n);
+		int copy = tree.add(op, a, b, c);
+		tree.setType(copy, tree.type(n));
+		return copy;
+	}
+
+	// produces a copy of the list starting at n
+	private int copyList(ClassTree tree, int n) {
+		int head = ClassTree.NONE;
+		int tail = ClassTree.NONE;
+		for (; n != ClassTree.NONE; n = tree.next(n)) {
+			int copy = copy(tree, n);
+			if (head == ClassTree.NONE)
+				head = copy;
+			else
+				tree.setNext(tail, copy);
+			tail = copy;
+		}
+		return head;
+	}
+
+	private int last(ClassTree tree, int n) {
+		while (tree.next(n) != ClassTree.NONE)
+			n = tree.next(n);
+		return n;
+	}
+
+	// number of nodes in the list starting at n, and below them
+	private int size(ClassTree tree, int n) {
+		int[] size = { 0 };
+		tree.postOrder(n, k -> size[0]++);
+		return size[0];
+	}
+}
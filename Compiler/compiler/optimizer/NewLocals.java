@@ -0,0 +1,66 @@
+package optimizer;
+
+import java.util.function.BiConsumer;
+
+import ast.ClassTree;
+import ast.Op;
+import ast.Subroutine;
+import writer.Segment;
+
+// What the passes that move an expression into a new local have in common: the
+// local is assigned by a LET that goes in front of the statement the expression
+// was taken from. Those LETs are collected in a list kept as { head, tail }
+// (both NONE while it is empty)
+class NewLocals {
+
+	private static final int LOCAL = Segment.LOCAL.ordinal();
+
+	// compute expression n into a new local of subroutine, and read the local in
+	// its place; produces the LET that assigns it (not in any list yet)
+	static int assign(ClassTree tree, Subroutine subroutine, int n) {
+		int local = subroutine.numLocals++;
+		int value = tree.add(tree.op(n), tree.a(n), tree.b(n), tree.c(n));
+		tree.setType(value, tree.type(n));
+		int target = tree.add(Op.VAR, LOCAL, local, 0);
+		tree.setType(target, tree.type(n));
+		int let = tree.add(Op.LET, target, value, 0);
+		tree.set(n, Op.VAR, LOCAL, local, 0);
+		return let;
+	}
+
+	// add statement to the end of list
+	static void append(ClassTree tree, int[] list, int statement) {
+		if (list[0] == ClassTree.NONE)
+			list[0] = statement;
+		else
+			tree.setNext(list[1], statement);
+		list[1] = statement;
+	}
+
+	// call visit with every statement of the list starting at n, and a list for
+	// the statements to put in front of it; produces the new head of the list
+	static int insertBefore(ClassTree tree, int n, BiConsumer<Integer, int[]> visit) {
+		int head = ClassTree.NONE;
+		int tail = ClassTree.NONE;
+		while (n != ClassTree.NONE) {
+			int next = tree.next(n);
+			int[] before = { ClassTree.NONE, ClassTree.NONE };
+			visit.accept(n, before);
+
+			int first = n;
+			if (before[0] != ClassTree.NONE) {
+				tree.setNext(before[1], n);
+				first = before[0];
+			}
+			if (head == ClassTree.NONE)
+				head = first;
+			else
+				tree.setNext(tail, first);
+			tail = n;
+			n = next;
+		}
+		if (tail != ClassTree.NONE)
+			tree.setNext(tail, ClassTree.NONE);
+		return head;
+	}
+}
@@ -0,0 +1,14 @@
+package optimizer;
+
+import ast.ClassTree;
+
+// an optimization pass over the tree of one class. Passes must not keep state
+// between runs: one instance is shared by every file being compiled
+public interface Pass {
+
+	// the name used to pick the pass on the command line (see Pipeline)
+	public String name();
+
+	// rewrite the tree in place; produces the number of changes made
+	public int run(ClassTree tree) throws Exception;
+}
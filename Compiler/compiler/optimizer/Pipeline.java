@@ -0,0 +1,98 @@
+package optimizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ast.ClassTree;
+
+// Runs a sequence of passes over the tree of every class, and keeps track of how
+// long each pass took and what it did (summed over every class it ran on). One
+// Pipeline is shared by all the files being compiled, possibly at the same time
+public class Pipeline {
+
+	// every pass, in the order they run by default
+	private static final List<Pass> ALL = Arrays.asList(new ConstantFolding(), new StrengthReduction(),
+			new UnreachableCode(), new LoopInvariants(), new CommonSubexpressions(), new LocalSlots());
+	// passes that can change what a program does, so they only run when named
+	private static final List<Pass> OPTIONAL = Arrays.asList(new StaticConstants(), new StringPooling());
+
+	private List<Pass> passes;
+
+	// per pass: total time (ns), changes made, and nodes removed from the tree
+	private long[] nanos;
+	private long[] changes;
+	private long[] removed;
+	private int runs;
+
+	// consumes a comma-separated list of pass names (they run in the given order),
+	// "all" for the default sequence, or "none", and the loop unrolling pass to
+	// offer (it comes after licm in "all"), or null: unrolling makes the program
+	// bigger, so it is only done when asked for
+	public Pipeline(String names, LoopUnrolling unrolling) throws Exception {
+		List<Pass> defaults = new ArrayList<Pass>(ALL);
+		if (unrolling != null)
+			defaults.add(defaults.indexOf(find(ALL, "licm")) + 1, unrolling);
+		List<Pass> available = new ArrayList<Pass>(defaults);
+		available.addAll(OPTIONAL);
+		passes = new ArrayList<Pass>();
+		if (names.equals("all")) {
+			passes.addAll(defaults);
+		} else if (!names.equals("none")) {
+			for (String name : names.split(","))
+				passes.add(find(available, name));
+		}
+		nanos = new long[passes.size()];
+		changes = new long[passes.size()];
+		removed = new long[passes.size()];
+		runs = 0;
+	}
+
+	private static Pass find(List<Pass> available, String name) throws Exception {
+		for (Pass pass : available)
+			if (pass.name().equals(name))
+				return pass;
+		throw new Exception("Unknown pass '" + name + '\'');
+	}
+
+	// the passes that will run, in order (ex. as part of a cache key)
+	public String names() {
+		List<String> names = new ArrayList<String>();
+		for (Pass pass : passes)
+			names.add(pass.name());
+		return names.isEmpty() ? "none" : String.join(",", names);
+	}
+
+	public void run(ClassTree tree) throws Exception {
+		// measuring the tree takes a walk over it, so only do it if passes run
+		int before = passes.isEmpty() ? 0 : tree.liveSize();
+		for (int i = 0; i < passes.size(); i++) {
+			long start = System.nanoTime();
+			int changed = passes.get(i).run(tree);
+			long time = System.nanoTime() - start;
+			int after = tree.liveSize();
+			record(i, time, changed, before - after);
+			before = after;
+		}
+		synchronized (this) {
+			runs++;
+		}
+	}
+
+	private synchronized void record(int pass, long time, int changed, int nodes) {
+		nanos[pass] += time;
+		changes[pass] += changed;
+		removed[pass] += nodes;
+	}
+
+	// one line per pass: time spent, changes made and nodes removed
+	public synchronized String report() {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%-14s %10s %8s %8s%n", "pass (" + runs + " classes)", "ms", "changes",
+				"nodes"));
+		for (int i = 0; i < passes.size(); i++)
+			report.append(String.format("%-14s %10.3f %8d %8d%n", passes.get(i).name(), nanos[i] / 1e6, changes[i],
+					-removed[i]));
+		return report.toString();
+	}
+}
@@ -0,0 +1,11 @@
+package optimizer;
+
+// what a call to a subroutine may do, as far as moving the call is concerned
+public enum Purity {
+	// may have side effects (or never return), so the call has to stay put
+	IMPURE,
+	// no side effects, but the result depends on memory as well as the arguments
+	READS,
+	// no side effects, and the result depends on the arguments only
+	PURE
+}
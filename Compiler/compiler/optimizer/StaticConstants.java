@@ -0,0 +1,83 @@
+package optimizer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import ast.ClassTree;
+import ast.Op;
+import ast.Subroutine;
+import writer.Segment;
+
+// Jack has no constants, so classes set statics once (typically in an init
+// function) and read them from then on. A static of this class (nothing else can
+// touch it) that is assigned exactly once, to a constant, has that value wherever
+// it is read after the assignment, so we replace its reads with the constant,
+// which opens them up to folding and strength reduction; folding runs again
+// here for that. Reads that may come before the assignment would have seen 0, so
+// we leave alone:
+// - statics read by the subroutine that assigns them (ex. 'if (~ready) { ...
+// let ready = true; }' checks whether the assignment happened yet)
+// - boolean statics, which are flags more often than constants
+// We assume, like the classes we are written for do, that the rest are only read
+// once the class is initialized. A static set to 0 is always safe to replace.
+// Nothing checks that assumption (ex. a read from a function that runs before
+// the init function), and by the time we run the subroutines the program never
+// calls are gone, along with any assignments in them. So the pass is off unless
+// asked for by name (see Pipeline)
+public class StaticConstants implements Pass {
+
+	private static final int STATIC = Segment.STATIC.ordinal();
+
+	public String name() {
+		return "statics";
+	}
+
+	public int run(ClassTree tree) {
+		// per static: the LET that assigns it (NONE if there are several), and the
+		// subroutine it is in; and the VAR nodes that are assigned to, not read
+		Map<Integer, Integer> lets = new HashMap<Integer, Integer>();
+		Map<Integer, Subroutine> writers = new HashMap<Integer, Subroutine>();
+		Set<Integer> targets = new HashSet<Integer>();
+		for (Subroutine subroutine : tree.subroutines)
+			tree.postOrder(subroutine.body, n -> {
+				if (tree.op(n) == Op.LET && isStatic(tree, tree.a(n))) {
+					int index = tree.b(tree.a(n));
+					lets.merge(index, n, (a, b) -> ClassTree.NONE);
+					writers.put(index, subroutine);
+					targets.add(tree.a(n));
+				}
+			});
+
+		Map<Integer, Integer> constants = new HashMap<Integer, Integer>();
+		for (Map.Entry<Integer, Integer> entry : lets.entrySet()) {
+			int let = entry.getValue();
+			if (let == ClassTree.NONE || tree.op(tree.b(let)) != Op.CONST)
+				continue;
+			int value = tree.a(tree.b(let));
+			if (value != 0 && "boolean".equals(tree.typeName(tree.a(let))))
+				continue;
+			constants.put(entry.getKey(), value);
+		}
+
+		int[] changes = new int[1];
+		for (Subroutine subroutine : tree.subroutines)
+			tree.postOrder(subroutine.body, n -> {
+				if (!isStatic(tree, n) || targets.contains(n))
+					return;
+				Integer value = constants.get(tree.b(n));
+				if (value != null && (value == 0 || writers.get(tree.b(n)) != subroutine)) {
+					tree.set(n, Op.CONST, value, 0, 0);
+					changes[0]++;
+				}
+			});
+		if (changes[0] > 0)
+			changes[0] += new ConstantFolding().run(tree);
+		return changes[0];
+	}
+
+	private static boolean isStatic(ClassTree tree, int n) {
+		return tree.op(n) == Op.VAR && tree.a(n) == STATIC;
+	}
+}
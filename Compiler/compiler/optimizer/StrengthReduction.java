@@ -0,0 +1,116 @@
+package optimizer;
+
+import ast.ClassTree;
+import ast.Op;
+import ast.Subroutine;
+
+// Replaces calls to Math.multiply and Math.divide that have a constant operand
+// with cheaper code:
+// x * c becomes a chain of doublings and additions/subtractions of x (see
+// CodeGenerator.generateScale), following the signed binary digits of c (ex.
+// x * 10 = ((x + x) + (x + x)) + ... ; x * 15 = x * 16 - x). Math.multiply
+// loops over all 16 bits, so the chain is much faster, but it grows with the
+// number of digits of c: past MAX_COST VM commands we keep the call, to keep the
+// code small.
+// x / 2^k calls a small helper written into the class (divide$pow2), which picks
+// out the bits of x instead of doing a long division; it rounds towards zero,
+// like Math.divide
+public class StrengthReduction implements Pass {
+
+	// the longest add chain (in VM commands) we write instead of a call
+	public static final int MAX_COST = 40;
+
+	public String name() {
+		return "strength";
+	}
+
+	public int run(ClassTree tree) {
+		int[] changes = new int[1];
+		for (Subroutine subroutine : tree.subroutines)
+			tree.postOrder(subroutine.body, n -> {
+				if (tree.op(n) == Op.BINARY && reduce(tree, n))
+					changes[0]++;
+			});
+		return changes[0];
+	}
+
+	private boolean reduce(ClassTree tree, int n) {
+		int x = tree.a(n);
+		int y = tree.b(n);
+		char op = (char) tree.c(n);
+
+		if (op == '*') {
+			// constants have no side effects, so we may evaluate the operands in either
+			// order
+			if (tree.op(x) == Op.CONST && tree.op(y) != Op.CONST) {
+				int swap = x;
+				x = y;
+				y = swap;
+			}
+			if (tree.op(y) != Op.CONST || tree.a(y) == 0 || cost(tree.a(y), isSimple(tree, x)) > MAX_COST)
+				return false;
+			tree.set(n, Op.MUL_CONST, x, tree.a(y), 0);
+			return true;
+		}
+
+		if (op == '/' && tree.op(y) == Op.CONST) {
+			int divisor = tree.a(y);
+			int magnitude = Math.abs(divisor);
+			if (magnitude < 2 || magnitude > Short.MAX_VALUE || (magnitude & (magnitude - 1)) != 0)
+				return false;
+			if (divisor > 0) {
+				tree.set(n, Op.DIV_POW2, x, magnitude, 0);
+			} else {
+				// x / -m = -(x / m); reuse y for the division
+				tree.set(y, Op.DIV_POW2, x, magnitude, 0);
+				tree.set(n, Op.UNARY, y, 0, '-');
+			}
+			return true;
+		}
+		return false;
+	}
+
+	// produces true iff n can be pushed more than once (with one command each time)
+	// instead of being saved in a temp
+	public static boolean isSimple(ClassTree tree, int n) {
+		return tree.op(n) == Op.VAR || tree.op(n) == Op.THIS;
+	}
+
+	// the signed binary digits of |factor| (each -1, 0 or 1), most significant
+	// first, with no two adjacent non-zero digits (so there are as few non-zero
+	// digits, i.e. additions/subtractions, as possible)
+	public static int[] digits(int factor) {
+		long c = Math.abs((long) factor);
+		int[] reversed = new int[18];
+		int length = 0;
+		while (c != 0) {
+			int digit = 0;
+			if ((c & 1) != 0) {
+				digit = (c & 3) == 3 ? -1 : 1;
+				c -= digit;
+			}
+			reversed[length++] = digit;
+			c >>= 1;
+		}
+		int[] digits = new int[length];
+		for (int i = 0; i < length; i++)
+			digits[i] = reversed[length - 1 - i];
+		return digits;
+	}
+
+	// number of VM commands in the add chain for x * factor, not counting the
+	// commands that evaluate x (see CodeGenerator.generateScale)
+	// CONSTRAINT: factor != 0
+	public static int cost(int factor, boolean simple) {
+		int[] digits = digits(factor);
+		// save x in a temp and push it again, unless it is simple
+		int cost = simple ? 0 : 2;
+		for (int i = 1; i < digits.length; i++) {
+			// the first doubling pushes x again, the rest go through a temp
+			cost += i == 1 ? 2 : 4;
+			if (digits[i] != 0)
+				cost += 2;
+		}
+		return factor < 0 ? cost + 1 : cost;
+	}
+}
@@ -0,0 +1,41 @@
+package optimizer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ast.ClassTree;
+import ast.Op;
+import ast.Subroutine;
+
+// Gives every distinct string literal of a class a hidden static variable (after
+// the class's own statics), and makes each use of the literal read it. The
+// string is built the first time the literal is evaluated (statics start out as
+// 0, i.e. null) and shared from then on, instead of being allocated and filled
+// in one appendChar call at a time on every evaluation.
+// NOTE: this means all evaluations of a literal produce the same object, so a
+// program that disposes of or modifies a string it got from a literal breaks.
+// The pass is off unless asked for by name (see Pipeline)
+public class StringPooling implements Pass {
+
+	public String name() {
+		return "strings";
+	}
+
+	public int run(ClassTree tree) {
+		Map<Integer, Integer> statics = new HashMap<Integer, Integer>();
+		int[] changes = new int[1];
+		for (Subroutine subroutine : tree.subroutines)
+			tree.postOrder(subroutine.body, n -> {
+				if (tree.op(n) != Op.STRING)
+					return;
+				Integer index = statics.get(tree.a(n));
+				if (index == null) {
+					index = tree.numStatics++;
+					statics.put(tree.a(n), index);
+				}
+				tree.set(n, Op.POOLED_STRING, tree.a(n), index, 0);
+				changes[0]++;
+			});
+		return changes[0];
+	}
+}
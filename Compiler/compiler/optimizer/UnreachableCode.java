@@ -0,0 +1,56 @@
+package optimizer;
+
+import ast.ClassTree;
+import ast.Op;
+import ast.Subroutine;
+
+// drops statements that can never run because every path before them returns
+// (ex. code after a 'return', or after an if whose branches both return)
+public class UnreachableCode implements Pass {
+
+	public String name() {
+		return "unreachable";
+	}
+
+	public int run(ClassTree tree) {
+		int changes = 0;
+		for (Subroutine subroutine : tree.subroutines)
+			changes += prune(tree, subroutine.body);
+		return changes;
+	}
+
+	// prune the statement list starting at n; produces the number of statements
+	// dropped
+	private int prune(ClassTree tree, int n) {
+		int changes = 0;
+		for (; n != ClassTree.NONE; n = tree.next(n)) {
+			if (tree.op(n) == Op.IF) {
+				changes += prune(tree, tree.b(n));
+				changes += prune(tree, tree.c(n));
+			} else if (tree.op(n) == Op.WHILE) {
+				changes += prune(tree, tree.b(n));
+			}
+			if (returns(tree, n) && tree.next(n) != ClassTree.NONE) {
+				for (int k = tree.next(n); k != ClassTree.NONE; k = tree.next(k))
+					changes++;
+				tree.setNext(n, ClassTree.NONE);
+			}
+		}
+		return changes;
+	}
+
+	// produces true iff every path through statement n ends in a return
+	private boolean returns(ClassTree tree, int n) {
+		if (tree.op(n) == Op.RETURN)
+			return true;
+		return tree.op(n) == Op.IF && listReturns(tree, tree.b(n)) && listReturns(tree, tree.c(n));
+	}
+
+	private boolean listReturns(ClassTree tree, int n) {
+		if (n == ClassTree.NONE)
+			return false;
+		while (tree.next(n) != ClassTree.NONE)
+			n = tree.next(n);
+		return returns(tree, n);
+	}
+}
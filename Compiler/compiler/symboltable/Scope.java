@@ -0,0 +1,79 @@
+package symboltable;
+
+import java.util.Arrays;
+
+// One scope of the SymbolTable: an open-addressing hash table from names to
+// Symbols (linear probing, kept at most half full). Each name's hash code is
+// stored next to it, so a probe only calls equals() on a real match
+class Scope {
+
+	private String[] names;
+	private int[] hashes;
+	private Symbol[] symbols;
+	private int size;
+
+	Scope() {
+		names = new String[16];
+		hashes = new int[16];
+		symbols = new Symbol[16];
+		size = 0;
+	}
+
+	// spread the hash code over the low bits, which pick the slot
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	// produce the slot holding name, or the empty slot where it would go
+	private int slotOf(String name, int hash) {
+		int mask = names.length - 1;
+		int slot = spread(hash) & mask;
+		while (names[slot] != null && !(hashes[slot] == hash && names[slot].equals(name)))
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	void put(String name, Symbol symbol) {
+		if (2 * (size + 1) > names.length)
+			grow();
+		int hash = name.hashCode();
+		int slot = slotOf(name, hash);
+		if (names[slot] == null)
+			size++;
+		names[slot] = name;
+		hashes[slot] = hash;
+		symbols[slot] = symbol;
+	}
+
+	// produce the symbol with the given name, or null
+	Symbol get(String name) {
+		if (size == 0)
+			return null;
+		return symbols[slotOf(name, name.hashCode())];
+	}
+
+	void clear() {
+		if (size == 0)
+			return;
+		Arrays.fill(names, null);
+		Arrays.fill(symbols, null);
+		size = 0;
+	}
+
+	private void grow() {
+		String[] oldNames = names;
+		int[] oldHashes = hashes;
+		Symbol[] oldSymbols = symbols;
+		names = new String[2 * oldNames.length];
+		hashes = new int[names.length];
+		symbols = new Symbol[names.length];
+		for (int i = 0; i < oldNames.length; i++) {
+			if (oldNames[i] == null)
+				continue;
+			int slot = slotOf(oldNames[i], oldHashes[i]);
+			names[slot] = oldNames[i];
+			hashes[slot] = oldHashes[i];
+			symbols[slot] = oldSymbols[i];
+		}
+	}
+}
@@ -1,68 +1,73 @@
 package symboltable;
 
-import java.util.Hashtable;
-import java.util.stream.Stream;
-
 // Keep track of all Symbols encountered in Stream so far (and store information about them such as initialization context, type, etc)
 public class SymbolTable {
 
 	// one table for each scope; classTable refers to the global namespace, while
 	// subroutineTable refers to the local namespace
-	private Hashtable<String, Symbol> classTable;
-	private Hashtable<String, Symbol> subroutineTable;
+	private Scope classTable;
+	private Scope subroutineTable;
 	private boolean subroutineOffset;
 
+	// number of symbols defined so far of each Kind (indexed by ordinal), so we
+	// never have to count them
+	private int[] counts;
+
 	public SymbolTable() {
-		classTable = new Hashtable<String, Symbol>();
-		subroutineTable = new Hashtable<String, Symbol>();
+		classTable = new Scope();
+		subroutineTable = new Scope();
 		subroutineOffset = false;
+		counts = new int[Kind.values().length];
 	}
 
 	// clear the current subroutineTable and reset index (used when compiler exits
 	// a local scope)
 	public void startNewSubroutine(boolean offset) {
-		subroutineTable = new Hashtable<String, Symbol>();
+		subroutineTable.clear();
 		subroutineOffset = offset;
+		counts[Kind.ARG.ordinal()] = 0;
+		counts[Kind.VAR.ordinal()] = 0;
 	}
 
 	// add a new symbol to the specified table; the scope of the symbol is
 	// determined by its Kind
 	public void define(String name, String type, Kind kind) {
+		int index = counts[kind.ordinal()]++;
 		if (kind == Kind.STATIC || kind == Kind.FIELD) {
-			classTable.put(name, new Symbol(type, kind, varCount(kind)));
+			classTable.put(name, new Symbol(type, kind, index));
 		} else {
 			byte offset = (byte) (subroutineOffset && kind == Kind.ARG ? 1 : 0);
-			subroutineTable.put(name, new Symbol(type, kind, varCount(kind) + offset));
+			subroutineTable.put(name, new Symbol(type, kind, index + offset));
 		}
 	}
 
 	// count the number of variables stored in local and global scope with specified
 	// Kind
 	public int varCount(Kind kind) {
-		return (int) Stream.concat(classTable.values().stream(), subroutineTable.values().stream())
-				.filter(s -> (s.kind == kind)).count();
+		return counts[kind.ordinal()];
 	}
 
-	// find a symbol with specified name, or throw an exception if it does not
+	// find the symbol with specified name, or produce null if it does not
 	// exist/is not stored; note that local scope overrides global scope - if a
 	// variable is defined in both, we will always produce the local definition
+	public Symbol lookup(String symbolName) {
+		Symbol symbol = subroutineTable.get(symbolName);
+		return symbol != null ? symbol : classTable.get(symbolName);
+	}
+
+	// like lookup, but throws an exception if the symbol DNE
 	private Symbol findSymbol(String symbolName) throws Exception {
-		if (subroutineTable.containsKey(symbolName))
-			return subroutineTable.get(symbolName);
-		else if (classTable.containsKey(symbolName))
-			return classTable.get(symbolName);
-		else
+		Symbol symbol = lookup(symbolName);
+		if (symbol == null)
 			throw new Exception("Symbol '" + symbolName + "' DNE");
+		return symbol;
 	}
 
 	// find the Kind of the symbol with specified name (if it DNE/is not stored,
 	// produce NONE)
 	public Kind kindOf(String symbolName) {
-		try {
-			return findSymbol(symbolName).kind;
-		} catch (Exception e) {
-			return Kind.NONE;
-		}
+		Symbol symbol = lookup(symbolName);
+		return symbol == null ? Kind.NONE : symbol.kind;
 	}
 
 	// produce type of specified symbol, or propogate exception if DNE
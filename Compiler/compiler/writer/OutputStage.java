@@ -0,0 +1,73 @@
+package writer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Writes chunks of text to a file on a thread of its own, so the thread that
+// produces them does not wait for the disk. The queue is bounded: a producer
+// that gets QUEUE_SIZE chunks ahead waits for the writer to catch up
+public class OutputStage implements Runnable {
+
+	private static final int QUEUE_SIZE = 4;
+	// marks the end of the output (compared by reference)
+	private static final String END = new String();
+
+	private Writer out;
+	private BlockingQueue<String> queue;
+	private Thread thread;
+	// the first write that failed; the rest of the output is dropped
+	private volatile IOException error;
+
+	// consumes the writer to write chunks to; it is closed by close()
+	public OutputStage(Writer out) {
+		this.out = out;
+		queue = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+		error = null;
+		thread = new Thread(this, "output");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void run() {
+		try {
+			for (String chunk = queue.take(); chunk != END; chunk = queue.take()) {
+				if (error != null)
+					continue;
+				try {
+					out.write(chunk);
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+		} catch (InterruptedException e) {
+			// never interrupted; END is how we stop
+		}
+	}
+
+	// queue chunk to be written; throws the error of an earlier write, if any
+	public void write(String chunk) throws IOException {
+		if (error != null)
+			throw error;
+		try {
+			queue.put(chunk);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while writing output", e);
+		}
+	}
+
+	// wait for everything queued to be written, and close the file
+	public void close() throws IOException {
+		try {
+			queue.put(END);
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while writing output", e);
+		} finally {
+			out.close();
+		}
+		if (error != null)
+			throw error;
+	}
+}
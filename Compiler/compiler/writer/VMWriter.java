@@ -1,20 +1,47 @@
 package writer;
 
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 
 // handle opening of, and writing of VM commands to, the Output file (in particular, provides an API for writing all VM commands)
 public class VMWriter {
 
-	private FileWriter writer;
+	// pipelined output is handed over in chunks of about this many characters
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private BufferedWriter writer;
+	// pipelined mode: the stage that writes the file, and the chunk being filled
+	private OutputStage stage;
+	private StringBuilder chunk;
 
 	// consumes name of file to parse (should have .jack extension)
 	public VMWriter(String fileName) throws IOException {
-		writer = new FileWriter(fileName.substring(0, fileName.length() - 4) + "vm");
+		this(fileName, false);
+	}
+
+	// in pipelined mode, the file is written by an OutputStage while we carry on
+	public VMWriter(String fileName, boolean pipelined) throws IOException {
+		FileWriter file = new FileWriter(fileName.substring(0, fileName.length() - 4) + "vm");
+		if (pipelined) {
+			stage = new OutputStage(file);
+			chunk = new StringBuilder(CHUNK_SIZE + 64);
+		} else {
+			writer = new BufferedWriter(file);
+		}
 	}
 
 	private void writeLine(String line) throws IOException {
-		writer.write(line + '\n');
+		if (stage == null) {
+			writer.write(line);
+			writer.write('\n');
+			return;
+		}
+		chunk.append(line).append('\n');
+		if (chunk.length() >= CHUNK_SIZE) {
+			stage.write(chunk.toString());
+			chunk.setLength(0);
+		}
 	}
 
 	// write a VM push command
@@ -63,6 +90,17 @@ public class VMWriter {
 	}
 
 	public void close() throws IOException {
-		writer.close();
+		if (stage == null) {
+			writer.close();
+			return;
+		}
+		// the writer thread has to stop (and the file be closed) even if the last
+		// chunk cannot be handed over
+		try {
+			if (chunk.length() > 0)
+				stage.write(chunk.toString());
+		} finally {
+			stage.close();
+		}
 	}
 }
@@ -19,10 +19,10 @@ public class Parser {
 	// stream has excess tokens (ex. var declarations, because they are always
 	// present at the top of a subroutine or class) and therefore is permissible.
 
-	// Note that we could use peek() for the same functionality above but that does
-	// not give us access to the tokenizer API/abstractions (ex. the tokenType() and
-	// keyword() functions) while having the same risk of out of bounds
-	// exception/segfaulting. peek() is better in some cases though.
+	// Note that we could use peekIs()/peekSymbol() for the same functionality above
+	// but that does not give us access to the tokenizer API/abstractions (ex. the
+	// tokenType() and keyword() functions) while having the same risk of out of
+	// bounds exception/segfaulting. Peeking is better in some cases though.
 
 	// Benefit of using a string builder and decoupling the write/addLine operations
 	// is we could use try catch blocks to try adding particular blocks (and on
@@ -355,7 +355,7 @@ public class Parser {
 		addLine("<letStatement>");
 		addLine("<keyword>let</keyword>");
 		addIdentifier();
-		if (tokenizer.peek().equals("[")) {
+		if (tokenizer.peekIs("[")) {
 			addSymbol('[');
 			compileExpression();
 			addSymbol(']');
@@ -387,7 +387,7 @@ public class Parser {
 		// 'return' expression? ';'
 		addLine("<returnStatement>");
 		addLine("<keyword>return</keyword>");
-		if (!tokenizer.peek().equals(";")) {
+		if (!tokenizer.peekIs(";")) {
 			compileExpression();
 		}
 		addSymbol(';');
@@ -406,7 +406,7 @@ public class Parser {
 		addSymbol('{');
 		compileStatements();
 		addSymbol('}');
-		if (tokenizer.peek().equals("else")) {
+		if (tokenizer.peekIs("else")) {
 			advance();
 			addLine("<keyword>else</keyword>");
 			addSymbol('{');
@@ -416,9 +416,9 @@ public class Parser {
 		addLine("</ifStatement>");
 	}
 
-	private Boolean isOperation(String s) {
+	private Boolean isOperation(char c) {
 		// op: '+'|'-'|'*'|'/'|'&'|'|'|'<'|'>'|'='
-		return s.length() == 1 && Arrays.asList('+', '-', '*', '/', '&', '|', '<', '>', '=').contains(s.charAt(0));
+		return Arrays.asList('+', '-', '*', '/', '&', '|', '<', '>', '=').contains(c);
 	}
 
 	// compile an expression
@@ -426,7 +426,7 @@ public class Parser {
 		// term (op term)*
 		addLine("<expression>");
 		compileTerm();
-		while (isOperation(tokenizer.peek())) {
+		while (isOperation(tokenizer.peekSymbol())) {
 			advance();
 			addSymbol();
 			compileTerm();
@@ -466,17 +466,17 @@ public class Parser {
 			break;
 		case IDENTIFIER:
 			addLine("<identifier>" + tokenizer.val() + "</identifier>");
-			switch (tokenizer.peek()) {
-			case "[":
+			switch (tokenizer.peekSymbol()) {
+			case '[':
 				// array access
 				addSymbol('[');
 				compileExpression();
 				addSymbol(']');
 				break;
-			case "(":
+			case '(':
 				compileSubroutineCall();
 				break;
-			case ".":
+			case '.':
 				addSymbol('.');
 				compileSubroutineCall();
 				break;
@@ -495,9 +495,9 @@ public class Parser {
 	private void compileExpressionList() throws Exception {
 		// (expression (',' expression)* )?
 		addLine("<expressionList>");
-		if (!tokenizer.peek().equals(")")) {
+		if (!tokenizer.peekIs(")")) {
 			compileExpression();
-			while (!tokenizer.peek().equals(")")) {
+			while (!tokenizer.peekIs(")")) {
 				addSymbol(',');
 				compileExpression();
 			}
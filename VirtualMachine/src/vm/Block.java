@@ -0,0 +1,36 @@
+package vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// a basic block: a run of commands that is only entered at the top (through
+// any of its labels, or by falling into it) and only left at the bottom
+public class Block {
+
+	public List<String> labels;
+	// never contains labels; only the last command can be a goto, if-goto or
+	// return
+	public List<Instruction> commands;
+	public boolean reachable;
+
+	public Block() {
+		labels = new ArrayList<String>();
+		commands = new ArrayList<Instruction>();
+		reachable = false;
+	}
+
+	public Instruction last() {
+		return commands.isEmpty() ? null : commands.get(commands.size() - 1);
+	}
+
+	// produces true if control can continue into the next block
+	public boolean fallsThrough() {
+		Instruction last = last();
+		return last == null || (last.type != Command.C_GOTO && last.type != Command.C_RETURN);
+	}
+
+	// produces true if the block is nothing but a jump
+	public boolean isJump() {
+		return commands.size() == 1 && commands.get(0).type == Command.C_GOTO;
+	}
+}
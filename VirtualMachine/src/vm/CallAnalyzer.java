@@ -0,0 +1,128 @@
+package vm;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// decides which calling convention each function of the program is called with.
+// Since the caller builds the frame and the callee unwinds it, both sides must
+// agree; we pick the convention per callee (calls are always by name) after
+// seeing every function of every input file, so all call sites and the
+// callee's return are translated consistently.
+// - a callee that never pops into pointer 0/1 leaves THIS/THAT as it found them
+// (its own calls restore whatever they change), so there is no need to save
+// and restore them: NO_POINTERS
+// - if it additionally declares no locals and makes no calls, nothing ever
+// reads LCL while it runs, so LCL can stay the caller's: LEAF. Its return
+// locates the frame through ARG instead, which requires every call site to
+// pass the same number of args
+// Sys.init is entered by the bootstrap code, which always uses FULL, and so is
+// any function with no call site in the program (whoever calls it is not part
+// of this translation).
+// We also find the functions whose result every call site throws away (ex.
+// void subroutines, which are only ever called by do statements): such a
+// function returns no value at all, and its call sites have nothing to discard.
+// That is only safe when every call site is in the program, so it is only done
+// when a whole program (a directory with Sys.init in it) is translated together
+public class CallAnalyzer {
+
+	private Map<String, Convention> conventions;
+	// number of args every call site passes (LEAF functions only)
+	private Map<String, Integer> numArgs;
+	// functions whose result no call site uses
+	private Set<String> valueless;
+
+	// consumes the program, and whether it was translated from a directory
+	public CallAnalyzer(List<Instruction> program, boolean directory) {
+		conventions = new HashMap<String, Convention>();
+		numArgs = new HashMap<String, Integer>();
+		valueless = new HashSet<String>();
+
+		// -1 marks functions called with differing arg counts
+		Map<String, Integer> argCounts = new HashMap<String, Integer>();
+		// true for functions whose result every call site discards
+		Map<String, Boolean> discarded = new HashMap<String, Boolean>();
+		boolean hasInit = false;
+		for (int i = 0; i < program.size(); i++) {
+			Instruction instruction = program.get(i);
+			if (instruction.type == Command.C_FUNCTION && instruction.arg1.equals("Sys.init")) {
+				hasInit = true;
+			} else if (instruction.type == Command.C_CALL) {
+				argCounts.merge(instruction.arg1, instruction.arg2, (a, b) -> a.equals(b) ? a : -1);
+				discarded.merge(instruction.arg1, discardsResult(program, i), (a, b) -> a && b);
+			}
+		}
+
+		for (Function function : Function.split(program)) {
+			if (function.header == null || function.name().equals("Sys.init"))
+				continue;
+
+			if (directory && hasInit && discarded.getOrDefault(function.name(), false))
+				valueless.add(function.name());
+
+			boolean setsPointers = false;
+			boolean makesCalls = false;
+			for (Instruction instruction : function.body) {
+				if (instruction.type == Command.C_POP && instruction.arg1.equals("pointer"))
+					setsPointers = true;
+				else if (instruction.type == Command.C_CALL)
+					makesCalls = true;
+			}
+			// a function nothing in the program calls may be entered from outside
+			// it (ex. by a test script), which builds the standard frame
+			Integer args = argCounts.get(function.name());
+			if (setsPointers || args == null)
+				continue;
+
+			if (!makesCalls && function.header.arg2 == 0 && args >= 0) {
+				conventions.put(function.name(), Convention.LEAF);
+				numArgs.put(function.name(), args);
+			} else {
+				conventions.put(function.name(), Convention.NO_POINTERS);
+			}
+		}
+	}
+
+	// produce the convention the named function is called with (functions outside
+	// the program use the standard one)
+	public Convention conventionOf(String functionName) {
+		return conventions.getOrDefault(functionName, Convention.FULL);
+	}
+
+	// produce true iff calls to the named function leave a return value on the
+	// stack (see above)
+	public boolean returnsValue(String functionName) {
+		return !valueless.contains(functionName);
+	}
+
+	// produces true iff the call at program[i] is followed by 'pop temp 0' (which
+	// is how the compiler throws away the result of a do statement), and temp 0 is
+	// not read again before the next label, jump, call or return; temp is scratch
+	// space, which nothing expects to keep its value across those
+	public static boolean discardsResult(List<Instruction> program, int i) {
+		if (i + 1 >= program.size() || !isTemp0(program.get(i + 1), Command.C_POP))
+			return false;
+		for (int k = i + 2; k < program.size(); k++) {
+			Instruction instruction = program.get(k);
+			if (instruction.type != Command.C_PUSH && instruction.type != Command.C_POP
+					&& instruction.type != Command.C_ARITHMETIC)
+				return true;
+			if (isTemp0(instruction, Command.C_PUSH))
+				return false;
+			if (isTemp0(instruction, Command.C_POP))
+				return true;
+		}
+		return true;
+	}
+
+	private static boolean isTemp0(Instruction instruction, Command type) {
+		return instruction.type == type && instruction.accesses("temp") && instruction.arg2 == 0;
+	}
+
+	// CONSTRAINT: only called for LEAF functions
+	public int numArgsOf(String functionName) {
+		return numArgs.get(functionName);
+	}
+}
@@ -2,6 +2,7 @@ package vm;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
 
 // translates VM commands to Hack assembly code, with respect to the
 // standard VM mapping. Also handles writing to the output file
@@ -21,12 +22,23 @@ public class CodeWriter {
 	private int lastLabel;
 	// current function definition we are translating
 	private String functionName;
+	// deferred stack pointer mode (see the section at the end of the class); when
+	// enabled, the actual top of the stack is *SP + stackOffset
+	private boolean deferred;
+	private int stackOffset;
+	// bump allocation mode: calls to the compiler's Arena.alloc (see the Jack
+	// compiler's Arena class) allocate inline, and only call it when the arena is
+	// full or not set up yet
+	private boolean bumpAlloc;
 
 	public CodeWriter(String outputName) throws IOException {
 		writer = new FileWriter(outputName + ".asm");
 		out = new StringBuilder();
 		lastLabel = 0;
 		functionName = "f";
+		deferred = false;
+		stackOffset = 0;
+		bumpAlloc = false;
 
 		writeInit();
 	}
@@ -35,6 +47,14 @@ public class CodeWriter {
 		this.fileName = fileName;
 	}
 
+	public void setDeferred(boolean deferred) {
+		this.deferred = deferred;
+	}
+
+	public void setBumpAlloc(boolean bumpAlloc) {
+		this.bumpAlloc = bumpAlloc;
+	}
+
 	private void addLine(String line) {
 		out.append(line);
 		out.append('\n');
@@ -59,6 +79,10 @@ public class CodeWriter {
 
 	// writes asm translation of stack arithmetic commands to output file
 	public void writeArithmetic(String command) throws Exception {
+		if (deferred) {
+			writeDeferredArithmetic(command);
+			return;
+		}
 		switch (command) {
 		case "add":
 		case "sub":
@@ -206,6 +230,10 @@ public class CodeWriter {
 	// push or pop operation itself is applied to the "stack" w.r.t.
 	// the specified memSeg.
 	public void writePushPop(Command type, String segment, int index) throws Exception {
+		if (deferred) {
+			writeDeferredPushPop(type, segment, index);
+			return;
+		}
 		String base = "0";
 		switch (segment) {
 		case "argument":
@@ -299,6 +327,7 @@ public class CodeWriter {
 
 	// writes a label using above form
 	public void writeLabel(String label) throws IOException {
+		flushStack();
 		addLine("//label " + label);
 		addLine('(' + functionName + '$' + label + ')');
 		write();
@@ -306,6 +335,7 @@ public class CodeWriter {
 
 	// writes the ASM mapping for a goto statement to the specified label
 	public void writeGoto(String label) throws IOException {
+		flushStack();
 		addLine("//goto " + label);
 		addLine('@' + functionName + '$' + label);
 		addLine("0;JMP");
@@ -319,8 +349,14 @@ public class CodeWriter {
 	public void writeIf(String label) throws IOException {
 		addLine("//if-goto " + label);
 		// SP--
-		addLine("@SP");
-		addLine("M=M-1");
+		if (deferred) {
+			// (and settle the pending offset along with it)
+			stackOffset--;
+			flushStack();
+		} else {
+			addLine("@SP");
+			addLine("M=M-1");
+		}
 		// D = *SP
 		addLine("@SP");
 		addLine("A=M");
@@ -334,6 +370,16 @@ public class CodeWriter {
 	// saves state of current function (caller) in the stack and initializes a
 	// private world for the callee to execute without disruption
 	public void writeCall(String functionName, int numArgs) throws IOException {
+		writeCall(functionName, numArgs, Convention.FULL);
+	}
+
+	// same as above, but only saves the part of the caller's state that the
+	// given convention calls for (see CallAnalyzer)
+	public void writeCall(String functionName, int numArgs, Convention convention) throws IOException {
+		flushStack();
+		boolean arena = bumpAlloc && functionName.equals("Arena.alloc") && numArgs == 1;
+		if (arena)
+			addArenaAlloc();
 		// push return-address; (Using the label declared at end)
 		addLine("@return" + lastLabel);
 		addLine("D=A");
@@ -343,35 +389,176 @@ public class CodeWriter {
 		addLine("@SP");
 		addLine("M=M+1");
 		// push LCL; Save LCL of the calling function
-		addPush("LCL");
+		if (convention != Convention.LEAF)
+			addPush("LCL");
 		// push ARG; Save ARG of the calling function
 		addPush("ARG");
-		// push THIS; Save THIS of the calling function
-		addPush("THIS");
-		// push THAT; Save THAT of the calling function
-		addPush("THAT");
-		// ARG = SP-n-5; Reposition ARG (n = number of args.)
+		if (convention == Convention.FULL) {
+			// push THIS; Save THIS of the calling function
+			addPush("THIS");
+			// push THAT; Save THAT of the calling function
+			addPush("THAT");
+		}
+		// ARG = SP-n-5; Reposition ARG (n = number of args., 5 = frame size)
 		addLine("@SP");
 		addLine("D=M");
-		addLine("@" + (numArgs + 5));
+		addLine("@" + (numArgs + convention.frameSize));
 		addLine("D=D-A");
 		addLine("@ARG");
 		addLine("M=D");
 		// LCL = SP; Reposition LCL
+		if (convention != Convention.LEAF) {
+			addLine("@SP");
+			addLine("D=M");
+			addLine("@LCL");
+			addLine("M=D");
+		}
+		// goto f; Transfer control
+		addLine("@" + functionName);
+		addLine("0;JMP");
+		// (return-address); Declare a label for the return-address
+		addLine("(return" + lastLabel + ")");
+		if (arena)
+			addLine("(ARENA_DONE" + lastLabel + ")");
+		write();
+
+		lastLabel++;
+	}
+
+	// the inline part of 'call Arena.alloc 1': static 0 of Arena is the next free
+	// word, static 1 the end of the arena. If the object fits, the top of the
+	// stack (its size) is replaced by its address and we skip the call that
+	// follows; otherwise (and before the arena is set up, when both are 0) we fall
+	// into the call
+	private void addArenaAlloc() {
+		addLine("//call Arena.alloc 1 (inline)");
+		// if (size + next - end > 0) goto call
+		addLine("@SP");
+		addLine("A=M-1");
+		addLine("D=M");
+		addLine("@Arena.0");
+		addLine("D=D+M");
+		addLine("@Arena.1");
+		addLine("D=D-M");
+		addLine("@ARENA_CALL" + lastLabel);
+		addLine("D;JGT");
+		// next += size; *(SP-1) = next - size
 		addLine("@SP");
+		addLine("A=M-1");
+		addLine("D=M");
+		addLine("@Arena.0");
+		addLine("M=D+M");
+		addLine("D=M-D");
+		addLine("@SP");
+		addLine("A=M-1");
+		addLine("M=D");
+		addLine("@ARENA_DONE" + lastLabel);
+		addLine("0;JMP");
+		addLine("(ARENA_CALL" + lastLabel + ")");
+	}
+
+	// translates 'call f n' when it is immediately followed by 'return'; instead
+	// of building a new frame on top of the current one, we hand the current
+	// frame over to the callee. The callee's return then restores the state of
+	// our own caller directly (and leaves the return value at *ARG, exactly where
+	// our return would have put it), so recursion in tail position runs in
+	// constant stack space.
+	//
+	// Final layout is [ARG..ARG+n) = the n args, [ARG+n..ARG+n+f) = our saved
+	// frame, LCL = SP = ARG+n+f, where f is the frame size of the convention
+	// (which must be the same for us and the callee; never LEAF). When we were
+	// called with n args ourselves (the common case: self-recursion), the saved
+	// frame is already in place and only the args move. Otherwise the args and
+	// the saved frame can overlap with their destinations in either direction, so
+	// we first copy the saved frame on top of the args to get one contiguous
+	// block, and then move that block down to ARG. In both cases the destination
+	// is below the source, so a low-to-high copy is safe
+	public void writeTailCall(String functionName, int numArgs, Convention convention) throws IOException {
+		int frameSize = convention.frameSize;
+		flushStack();
+		addLine("//call " + functionName + ' ' + numArgs + " (tail)");
+		// if (LCL != ARG+n+f) goto TAILi; the saved frame has to be moved
+		addLine("@ARG");
 		addLine("D=M");
+		addLine("@" + (numArgs + frameSize));
+		addLine("D=D+A");
 		addLine("@LCL");
+		addLine("D=M-D");
+		addLine("@TAIL" + lastLabel);
+		addLine("D;JNE");
+		// move the n args down to ARG, then SP = LCL
+		addMove(numArgs);
+		addLine("@LCL");
+		addLine("D=M");
+		addLine("@SP");
+		addLine("M=D");
+		// goto f; Transfer control (ARG, THIS and THAT are already in place)
+		addLine("@" + functionName);
+		addLine("0;JMP");
+
+		addLine("(TAIL" + lastLabel + ")");
+		// push *(LCL-5) ... *(LCL-1); copy the frame saved for our caller
+		// (return-address, LCL, ARG, THIS, THAT for FULL) above the args
+		for (int i = frameSize; i > 0; i--) {
+			addLine("@LCL");
+			addLine("D=M");
+			addLine("@" + i);
+			addLine("A=D-A");
+			addLine("D=M");
+			// SP* = D
+			addLine("@SP");
+			addLine("A=M");
+			addLine("M=D");
+			// SP++
+			addLine("@SP");
+			addLine("M=M+1");
+		}
+		// move args and saved frame down to ARG, then LCL = SP = ARG+n+f (*14 points
+		// just past the moved frame)
+		addMove(numArgs + frameSize);
+		addLine("@14");
+		addLine("D=M");
+		addLine("@LCL");
+		addLine("M=D");
+		addLine("@SP");
 		addLine("M=D");
 		// goto f; Transfer control
 		addLine("@" + functionName);
 		addLine("0;JMP");
-		// (return-address); Declare a label for the return-address
-		addLine("(return" + lastLabel + ")");
 		write();
 
 		lastLabel++;
 	}
 
+	// copies the top-most n stack entries to ARG..ARG+n-1 (low to high), leaving
+	// register 14 pointing just past the last copied entry
+	private void addMove(int n) {
+		// *13 = SP-n (source), *14 = ARG (destination)
+		addLine("@SP");
+		addLine("D=M");
+		addLine("@" + n);
+		addLine("D=D-A");
+		addLine("@13");
+		addLine("M=D");
+		addLine("@ARG");
+		addLine("D=M");
+		addLine("@14");
+		addLine("M=D");
+		// **14 = **13, *13++, *14++
+		for (int i = n; i > 0; i--) {
+			addLine("@13");
+			addLine("A=M");
+			addLine("D=M");
+			addLine("@14");
+			addLine("A=M");
+			addLine("M=D");
+			addLine("@13");
+			addLine("M=M+1");
+			addLine("@14");
+			addLine("M=M+1");
+		}
+	}
+
 	// given x, push *x onto the stack
 	private void addPush(String ptr) {
 		// D = *ptr
@@ -388,8 +575,21 @@ public class CodeWriter {
 
 	// returns control to the caller function and in doing so, restores the
 	// state of the global stack to the caller frame using information encoded
-	// during the original call
-	public void writeReturn() throws IOException {
+	// during the original call (which used the given convention; numArgs is only
+	// needed for LEAF)
+	public void writeReturn(Convention convention, int numArgs) throws IOException {
+		writeReturn(convention, numArgs, true);
+	}
+
+	// same as above; if value is false, the caller expects no return value (see
+	// CallAnalyzer), so there is none on the stack to hand over
+	public void writeReturn(Convention convention, int numArgs, boolean value) throws IOException {
+		flushStack();
+		if (convention == Convention.LEAF) {
+			writeLeafReturn(numArgs, value);
+			return;
+		}
+		int frameSize = convention.frameSize;
 		addLine("//return");
 		// FRAME = LCL; FRAME is a temporary variable (reg 14)
 		addLine("@LCL");
@@ -397,7 +597,67 @@ public class CodeWriter {
 		addLine("@14");
 		addLine("M=D");
 		// RET = *(FRAME-5); Put the return-address in a temp. var. (reg 15)
-		updateWRTFrame("15", 5);
+		updateWRTFrame("15", frameSize);
+		addReturnValue(value);
+		if (convention == Convention.FULL) {
+			// THAT = *(FRAME-1); Restore THAT of the caller
+			updateWRTFrame("THAT", 1);
+			// THIS = *(FRAME-2); Restore THIS of the caller
+			updateWRTFrame("THIS", 2);
+		}
+		// ARG = *(FRAME-3); Restore ARG of the caller
+		updateWRTFrame("ARG", frameSize - 2);
+		// LCL = *(FRAME-4); Restore LCL of the caller
+		updateWRTFrame("LCL", frameSize - 1);
+		// goto RET; Goto return-address (in the callers code)
+		addLine("@15");
+		addLine("A=M");
+		addLine("0;JMP");
+		write();
+	}
+
+	// return for the LEAF convention; LCL still belongs to the caller, so the
+	// frame (return-address, then the caller's ARG) is found right past the n
+	// args instead
+	private void writeLeafReturn(int numArgs, boolean value) throws IOException {
+		addLine("//return (leaf)");
+		// RET = *(ARG+n); read before the return value is stored, since for n = 0
+		// both live at *ARG
+		addLine("@ARG");
+		addLine("D=M");
+		addLine("@" + numArgs);
+		addLine("A=D+A");
+		addLine("D=M");
+		addLine("@15");
+		addLine("M=D");
+		addReturnValue(value);
+		// ARG = *(ARG+n+1); Restore ARG of the caller
+		addLine("@ARG");
+		addLine("D=M");
+		addLine("@" + (numArgs + 1));
+		addLine("A=D+A");
+		addLine("D=M");
+		addLine("@ARG");
+		addLine("M=D");
+		// goto RET
+		addLine("@15");
+		addLine("A=M");
+		addLine("0;JMP");
+		write();
+	}
+
+	// moves the return value (if any) where the caller expects it, and restores
+	// the caller's SP
+	private void addReturnValue(boolean value) {
+		if (!value) {
+			// SP = ARG; Restore SP of the caller (the args are gone, and there is no value
+			// in their place)
+			addLine("@ARG");
+			addLine("D=M");
+			addLine("@SP");
+			addLine("M=D");
+			return;
+		}
 		// *ARG = pop(); Reposition the return value for the caller
 		addLine("@SP");
 		addLine("M=M-1");
@@ -412,19 +672,6 @@ public class CodeWriter {
 		addLine("D=M+1");
 		addLine("@SP");
 		addLine("M=D");
-		// THAT = *(FRAME-1); Restore THAT of the caller
-		updateWRTFrame("THAT", 1);
-		// THIS = *(FRAME-2); Restore THIS of the caller
-		updateWRTFrame("THIS", 2);
-		// ARG = *(FRAME-3); Restore ARG of the caller
-		updateWRTFrame("ARG", 3);
-		// LCL = *(FRAME-4); Restore LCL of the caller
-		updateWRTFrame("LCL", 4);
-		// goto RET; Goto return-address (in the callers code)
-		addLine("@15");
-		addLine("A=M");
-		addLine("0;JMP");
-		write();
 	}
 
 	// stores *(FRAME - i) in the specified register (WRT = with respect to)
@@ -442,12 +689,29 @@ public class CodeWriter {
 	// declare a label for the function entry (of the form '(functionName)') and
 	// initialize numLocals entries with a value of 0 for the local variables
 	public void writeFunction(String functionName, int numLocals) throws IOException {
+		boolean[] zeroed = new boolean[numLocals];
+		Arrays.fill(zeroed, true);
+		writeFunction(functionName, numLocals, zeroed);
+	}
+
+	// same as above, but only the locals marked in zeroed are set to 0; the rest
+	// are written before they are read (see LocalInit), so we just make room for
+	// them
+	public void writeFunction(String functionName, int numLocals, boolean[] zeroed) throws IOException {
+		flushStack();
 		this.functionName = functionName;
 		addLine("//function " + functionName + ' ' + numLocals);
 		// (f)
 		addLine('(' + functionName + ')');
 		// init local vars
-		for (int i = numLocals; i > 0; i--) {
+		int skipped = 0;
+		for (int i = 0; i < numLocals; i++) {
+			if (!zeroed[i]) {
+				skipped++;
+				continue;
+			}
+			addSkip(skipped);
+			skipped = 0;
 			// D = 0
 			addLine("@0");
 			addLine("D=A");
@@ -459,10 +723,230 @@ public class CodeWriter {
 			addLine("@SP");
 			addLine("M=M+1");
 		}
+		addSkip(skipped);
 		write();
 	}
 
+	// SP += n, leaving the entries in between as they are
+	private void addSkip(int n) {
+		if (n == 0)
+			return;
+		if (n == 1) {
+			addLine("@SP");
+			addLine("M=M+1");
+		} else {
+			addLine("@" + n);
+			addLine("D=A");
+			addLine("@SP");
+			addLine("M=M+D");
+		}
+	}
+
 	public void close() throws IOException {
+		flushStack();
+		write();
 		writer.close();
 	}
+
+	// <-- Deferred stack pointer mode -->
+	// Within a basic block, we do not update *SP on every push and pop; instead we
+	// keep track of how far the actual stack top is from *SP (stackOffset) at
+	// translation time, and address stack entries as *SP + k directly. *SP is
+	// brought up to date ('flushed') before anything that reads it or can be
+	// reached from elsewhere: labels, jumps, calls, returns and function entries.
+	// Offsets are applied with one 'A=A+1'/'A=A-1' per step, so when an access
+	// would take more than MAX_STEP of those we flush first
+
+	private static final int MAX_STEP = 3;
+
+	// *SP += stackOffset; clobbers D
+	private void flushStack() {
+		if (stackOffset == 0)
+			return;
+		addLine("@SP");
+		if (stackOffset == 1) {
+			addLine("M=M+1");
+		} else if (stackOffset == -1) {
+			addLine("M=M-1");
+		} else {
+			addLine("@" + Math.abs(stackOffset));
+			addLine("D=A");
+			addLine("@SP");
+			addLine(stackOffset > 0 ? "M=M+D" : "M=M-D");
+		}
+		stackOffset = 0;
+	}
+
+	// flush if stack entries from (top + lo) to (top + hi) are out of reach
+	private void reach(int lo, int hi) {
+		if (Math.abs(stackOffset + lo) > MAX_STEP || Math.abs(stackOffset + hi) > MAX_STEP)
+			flushStack();
+	}
+
+	// A = *SP + stackOffset + k, the address of entry k relative to the actual
+	// stack top (ex. k = -1 is the top-most entry); leaves D untouched
+	private void addStackAddress(int k) {
+		int steps = stackOffset + k;
+		addLine("@SP");
+		if (steps == 0) {
+			addLine("A=M");
+		} else {
+			addLine(steps > 0 ? "A=M+1" : "A=M-1");
+			for (int i = Math.abs(steps); i > 1; i--)
+				addLine(steps > 0 ? "A=A+1" : "A=A-1");
+		}
+	}
+
+	private void writeDeferredArithmetic(String command) throws Exception {
+		addLine("//" + command);
+		switch (command) {
+		case "add":
+		case "sub":
+		case "and":
+		case "or":
+			reach(-2, -1);
+			// D = y; A = &x
+			addStackAddress(-1);
+			addLine("D=M");
+			addLine("A=A-1");
+			// x = x op y
+			switch (command) {
+			case "add":
+				addLine("M=D+M");
+				break;
+			case "sub":
+				addLine("M=M-D");
+				break;
+			case "and":
+				addLine("M=D&M");
+				break;
+			case "or":
+			default:
+				addLine("M=D|M");
+				break;
+			}
+			stackOffset--;
+			break;
+		case "neg":
+		case "not":
+			reach(-1, -1);
+			addStackAddress(-1);
+			addLine(command.equals("neg") ? "M=-M" : "M=!M");
+			break;
+		case "eq":
+		case "lt":
+		case "gt":
+			reach(-2, -1);
+			// D = y - x, and test it with the predicate flipped (like writePredicate
+			// does; x - y would overflow differently for far apart operands)
+			addStackAddress(-1);
+			addLine("D=M");
+			addLine("A=A-1");
+			addLine("D=D-M");
+			// x = -1, and back to 0 unless predicate(D)
+			addStackAddress(-2);
+			addLine("M=-1");
+			addLine("@LBL" + lastLabel);
+			addLine("D;J" + (command.equals("eq") ? "EQ" : command.equals("lt") ? "GT" : "LT"));
+			addStackAddress(-2);
+			addLine("M=0");
+			addLine("(LBL" + lastLabel + ")");
+			lastLabel++;
+			stackOffset--;
+			break;
+		default:
+			throw new Exception("Unrecognized Operation '" + command + '\'');
+		}
+		write();
+	}
+
+	private void writeDeferredPushPop(Command type, String segment, int index) throws Exception {
+		addLine("//" + (type == Command.C_PUSH ? "push" : "pop") + ' ' + segment + ' ' + index);
+		// fixed address of the entry for static, temp and pointer; base pointer for
+		// the others (null for constant)
+		String address = null;
+		String base = null;
+		switch (segment) {
+		case "static":
+			address = fileName + "." + index;
+			break;
+		case "temp":
+			address = String.valueOf(5 + index);
+			break;
+		case "pointer":
+			address = String.valueOf(3 + index);
+			break;
+		case "argument":
+			base = "ARG";
+			break;
+		case "local":
+			base = "LCL";
+			break;
+		case "this":
+			base = "THIS";
+			break;
+		case "that":
+			base = "THAT";
+			break;
+		case "constant":
+			break;
+		default:
+			throw new Exception("Unrecognized segment '" + segment + '\'');
+		}
+
+		if (type == Command.C_PUSH) {
+			reach(0, 0);
+			// D = value
+			if (address != null) {
+				addLine("@" + address);
+				addLine("D=M");
+			} else if (base != null) {
+				addLine("@" + base);
+				if (index == 0) {
+					addLine("A=M");
+				} else {
+					addLine("D=M");
+					addLine("@" + index);
+					addLine("A=D+A");
+				}
+				addLine("D=M");
+			} else {
+				addLine("@" + index);
+				addLine("D=A");
+			}
+			addStackAddress(0);
+			addLine("M=D");
+			stackOffset++;
+		} else {
+			reach(-1, -1);
+			if (address != null) {
+				addStackAddress(-1);
+				addLine("D=M");
+				addLine("@" + address);
+				addLine("M=D");
+			} else if (base != null && index == 0) {
+				addStackAddress(-1);
+				addLine("D=M");
+				addLine("@" + base);
+				addLine("A=M");
+				addLine("M=D");
+			} else if (base != null) {
+				// *13 = base + i
+				addLine("@" + base);
+				addLine("D=M");
+				addLine("@" + index);
+				addLine("D=D+A");
+				addLine("@13");
+				addLine("M=D");
+				addStackAddress(-1);
+				addLine("D=M");
+				addLine("@13");
+				addLine("A=M");
+				addLine("M=D");
+			}
+			// (popping into constant just discards the value)
+			stackOffset--;
+		}
+		write();
+	}
 }
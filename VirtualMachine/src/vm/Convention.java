@@ -0,0 +1,20 @@
+package vm;
+
+// calling conventions used between a caller and a callee (see CallAnalyzer).
+// Each one saves a different part of the caller's state in the frame
+public enum Convention {
+	// return-address, LCL, ARG, THIS, THAT (the standard mapping)
+	FULL(5),
+	// return-address, LCL, ARG; for callees that never set pointer 0/1
+	NO_POINTERS(3),
+	// return-address, ARG; for callees that also have no locals and make no
+	// calls, so LCL is never repositioned
+	LEAF(2);
+
+	// number of words saved between the args and the callee's locals
+	public final int frameSize;
+
+	private Convention(int frameSize) {
+		this.frameSize = frameSize;
+	}
+}
@@ -0,0 +1,145 @@
+package vm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// control-flow clean-up, one function at a time: the function body is split
+// into basic blocks (see Block), then
+// - jumps to a block that only jumps on are redirected to the final target
+// (jump threading; ex. the 'goto' at the end of an if statement that is the
+// last statement of a while body)
+// - blocks that cannot be reached from the function entry are removed (ex.
+// the 'goto' the compiler emits after a 'return' in an if branch)
+// - a 'goto' to the block that follows it anyway is removed
+// - labels that are no longer jumped to are removed (they generate no code, but
+// they end basic blocks for later stages)
+// Commands outside of any function are left as they are; we cannot know where
+// they are entered
+public class FlowGraph {
+
+	public List<Instruction> run(List<Instruction> program) {
+		List<Function> functions = Function.split(program);
+		for (Function function : functions)
+			if (function.header != null)
+				function.body = simplify(function.body, function.header.fileName);
+		return Function.join(functions);
+	}
+
+	private List<Instruction> simplify(List<Instruction> body, String fileName) {
+		List<Block> blocks = split(body);
+		Map<String, Block> labels = new HashMap<String, Block>();
+		for (Block block : blocks)
+			for (String label : block.labels)
+				labels.put(label, block);
+
+		// jump threading
+		for (Block block : blocks) {
+			Instruction last = block.last();
+			if (last != null && (last.type == Command.C_GOTO || last.type == Command.C_IF))
+				last.arg1 = finalTarget(last.arg1, labels);
+		}
+
+		// reachability from the entry block
+		LinkedList<Integer> worklist = new LinkedList<Integer>();
+		Map<Block, Integer> indices = new HashMap<Block, Integer>();
+		for (int i = 0; i < blocks.size(); i++)
+			indices.put(blocks.get(i), i);
+		if (!blocks.isEmpty()) {
+			blocks.get(0).reachable = true;
+			worklist.add(0);
+		}
+		while (!worklist.isEmpty()) {
+			int i = worklist.poll();
+			Block block = blocks.get(i);
+			List<Block> successors = new ArrayList<Block>();
+			if (block.fallsThrough() && i + 1 < blocks.size())
+				successors.add(blocks.get(i + 1));
+			Instruction last = block.last();
+			if (last != null && (last.type == Command.C_GOTO || last.type == Command.C_IF)
+					&& labels.containsKey(last.arg1))
+				successors.add(labels.get(last.arg1));
+			for (Block successor : successors) {
+				if (!successor.reachable) {
+					successor.reachable = true;
+					worklist.add(indices.get(successor));
+				}
+			}
+		}
+		List<Block> kept = new ArrayList<Block>();
+		for (Block block : blocks)
+			if (block.reachable)
+				kept.add(block);
+
+		// drop jumps to the next block
+		for (int i = 0; i + 1 < kept.size(); i++) {
+			Block block = kept.get(i);
+			Instruction last = block.last();
+			if (last != null && last.type == Command.C_GOTO && kept.get(i + 1).labels.contains(last.arg1))
+				block.commands.remove(block.commands.size() - 1);
+		}
+
+		Set<String> targets = new HashSet<String>();
+		for (Block block : kept) {
+			Instruction last = block.last();
+			if (last != null && (last.type == Command.C_GOTO || last.type == Command.C_IF))
+				targets.add(last.arg1);
+		}
+
+		List<Instruction> simplified = new ArrayList<Instruction>();
+		for (Block block : kept) {
+			for (String label : block.labels) {
+				if (targets.contains(label))
+					simplified.add(new Instruction(Command.C_LABEL, label, 0, fileName));
+			}
+			simplified.addAll(block.commands);
+		}
+		return simplified;
+	}
+
+	// split a function body into basic blocks, in order
+	private List<Block> split(List<Instruction> body) {
+		List<Block> blocks = new ArrayList<Block>();
+		Block current = new Block();
+		for (Instruction instruction : body) {
+			switch (instruction.type) {
+			case C_LABEL:
+				// a label starts a new block, unless the current one has no commands yet
+				if (!current.commands.isEmpty()) {
+					blocks.add(current);
+					current = new Block();
+				}
+				current.labels.add(instruction.arg1);
+				break;
+			case C_GOTO:
+			case C_IF:
+			case C_RETURN:
+				current.commands.add(instruction);
+				blocks.add(current);
+				current = new Block();
+				break;
+			default:
+				current.commands.add(instruction);
+				break;
+			}
+		}
+		if (!current.labels.isEmpty() || !current.commands.isEmpty())
+			blocks.add(current);
+		return blocks;
+	}
+
+	// follow a chain of blocks that only jump on, starting at the given label
+	private String finalTarget(String label, Map<String, Block> labels) {
+		Set<String> visited = new HashSet<String>();
+		Block block = labels.get(label);
+		while (block != null && block.isJump() && visited.add(label)) {
+			label = block.commands.get(0).arg1;
+			block = labels.get(label);
+		}
+		return label;
+	}
+}
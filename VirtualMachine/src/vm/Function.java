@@ -0,0 +1,53 @@
+package vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// a VM function: its 'function f k' command and the commands that follow it, up
+// to the next 'function' command. Used by the whole-program passes, which work
+// on one function at a time
+public class Function {
+
+	// the 'function' command; null for commands that precede the first function
+	// declaration (ex. test files that are not split into functions at all)
+	public Instruction header;
+	public List<Instruction> body;
+
+	public Function(Instruction header) {
+		this.header = header;
+		body = new ArrayList<Instruction>();
+	}
+
+	public String name() {
+		return header == null ? null : header.arg1;
+	}
+
+	// split a program into its functions, in order
+	public static List<Function> split(List<Instruction> program) {
+		List<Function> functions = new ArrayList<Function>();
+		Function current = new Function(null);
+		for (Instruction instruction : program) {
+			if (instruction.type == Command.C_FUNCTION) {
+				if (current.header != null || !current.body.isEmpty())
+					functions.add(current);
+				current = new Function(instruction);
+			} else {
+				current.body.add(instruction);
+			}
+		}
+		if (current.header != null || !current.body.isEmpty())
+			functions.add(current);
+		return functions;
+	}
+
+	// inverse of split
+	public static List<Instruction> join(List<Function> functions) {
+		List<Instruction> program = new ArrayList<Instruction>();
+		for (Function function : functions) {
+			if (function.header != null)
+				program.add(function.header);
+			program.addAll(function.body);
+		}
+		return program;
+	}
+}
@@ -0,0 +1,423 @@
+package vm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// whole-program inlining of small VM functions (runs over the commands of every
+// input file at once, so calls across files are inlined too). A call to a small,
+// non-recursive function is replaced by a copy of the function's body, which
+// saves building and unwinding a frame on every call.
+//
+// The copied body runs in the caller's frame, so we remap it:
+// - the callee's args and locals become extra locals of the caller (the args
+// are popped off the stack into them at the call site, the locals are zeroed)
+// - labels are renamed so they are unique within the caller
+// - 'return' becomes a jump to the end of the copy (the return value is already
+// on top of the stack)
+// - if the callee sets pointer 0/1 and the caller may still need its own
+// THIS/THAT afterwards, we save and restore them around the copy (a real call
+// would have restored them on return)
+// statics keep the callee's file name (see Instruction), so they still refer to
+// the callee's class.
+//
+// We only inline one level deep (bodies are always taken from the original
+// program), and functions whose every call site was inlined are dropped
+public class Inliner {
+
+	// largest function body (in VM commands, not counting 'function') we inline
+	private static final int MAX_SIZE = 10;
+	// we stop inlining once the program has grown by 1/GROWTH_DIVISOR of its
+	// original size
+	private static final int GROWTH_DIVISOR = 4;
+
+	private Map<String, Function> functions;
+	// local counts as declared in the original program (inlining grows them)
+	private Map<String, Integer> localCounts;
+	private Set<String> candidates;
+	// memoized results of mayReadOnEntry, one map per pointer (0 = THIS, 1 = THAT)
+	private List<Map<String, Boolean>> entryReads;
+	// accumulator for unique label names (one per inlined call site)
+	private int inlineCtr;
+	private int budget;
+	// number of host locals used by the last copy produced by copyBody
+	private int slotsUsed;
+
+	public Inliner() {
+		inlineCtr = 0;
+	}
+
+	public List<Instruction> run(List<Instruction> program) {
+		List<Function> split = Function.split(program);
+		functions = new HashMap<String, Function>();
+		localCounts = new HashMap<String, Integer>();
+		for (Function function : split) {
+			if (function.header != null) {
+				functions.put(function.name(), function);
+				localCounts.put(function.name(), function.header.arg2);
+			}
+		}
+
+		entryReads = new ArrayList<Map<String, Boolean>>();
+		entryReads.add(new HashMap<String, Boolean>());
+		entryReads.add(new HashMap<String, Boolean>());
+
+		candidates = new HashSet<String>();
+		for (Function function : functions.values())
+			if (isCandidate(function))
+				candidates.add(function.name());
+
+		budget = program.size() / GROWTH_DIVISOR;
+		Map<String, Integer> callsBefore = countCalls(split);
+
+		// build all new bodies before replacing any, so every copy is taken from the
+		// original program
+		List<List<Instruction>> bodies = new ArrayList<List<Instruction>>();
+		for (Function function : split)
+			bodies.add(function.header == null ? function.body : inlineCalls(function));
+		for (int i = 0; i < split.size(); i++)
+			split.get(i).body = bodies.get(i);
+
+		// drop functions that are no longer called from anywhere because all of their
+		// call sites were inlined
+		Map<String, Integer> callsAfter = countCalls(split);
+		List<Function> kept = new ArrayList<Function>();
+		for (Function function : split) {
+			String name = function.name();
+			if (name != null && callsBefore.containsKey(name) && !callsAfter.containsKey(name)
+					&& !name.equals("Sys.init"))
+				continue;
+			kept.add(function);
+		}
+
+		return Function.join(kept);
+	}
+
+	private Map<String, Integer> countCalls(List<Function> split) {
+		Map<String, Integer> calls = new HashMap<String, Integer>();
+		for (Function function : split)
+			for (Instruction instruction : function.body)
+				if (instruction.type == Command.C_CALL)
+					calls.merge(instruction.arg1, 1, Integer::sum);
+		return calls;
+	}
+
+	// a function can be inlined if it is small, cannot (transitively) call itself,
+	// and uses the stack in a disciplined way: stack depth is the same on every
+	// path to a label, it never pops below its own entry depth, and exactly the
+	// return value is left on its working stack at every 'return' (true for all
+	// code produced by the Jack compiler). Sys.init is entered by the bootstrap
+	// code, so it always has to exist as a real function
+	private boolean isCandidate(Function function) {
+		if (function.name().equals("Sys.init") || function.body.size() > MAX_SIZE)
+			return false;
+		if (reaches(function.name(), function.name(), new HashSet<String>()))
+			return false;
+
+		Map<String, Integer> labelDepth = new HashMap<String, Integer>();
+		int depth = 0;
+		boolean reachable = true;
+		for (Instruction instruction : function.body) {
+			if (instruction.type == Command.C_LABEL) {
+				Integer known = labelDepth.get(instruction.arg1);
+				if (!reachable) {
+					// only reachable through a jump we have already seen
+					if (known == null)
+						return false;
+					depth = known;
+					reachable = true;
+				} else if (known != null && known != depth) {
+					return false;
+				}
+				labelDepth.put(instruction.arg1, depth);
+				continue;
+			}
+			if (!reachable)
+				continue;
+
+			depth += stackEffect(instruction);
+			if (depth < 0)
+				return false;
+
+			switch (instruction.type) {
+			case C_GOTO:
+			case C_IF:
+				Integer known = labelDepth.get(instruction.arg1);
+				if (known != null && known != depth)
+					return false;
+				labelDepth.put(instruction.arg1, depth);
+				if (instruction.type == Command.C_GOTO)
+					reachable = false;
+				break;
+			case C_RETURN:
+				if (depth != 0)
+					return false;
+				reachable = false;
+				break;
+			default:
+				break;
+			}
+		}
+		// a body that can fall off its end is not well-formed
+		return !reachable;
+	}
+
+	// change in stack depth caused by executing the given command (for 'return',
+	// this accounts for popping the return value)
+	private int stackEffect(Instruction instruction) {
+		switch (instruction.type) {
+		case C_PUSH:
+			return 1;
+		case C_POP:
+		case C_IF:
+		case C_RETURN:
+			return -1;
+		case C_CALL:
+			return 1 - instruction.arg2;
+		case C_ARITHMETIC:
+			return instruction.arg1.equals("neg") || instruction.arg1.equals("not") ? 0 : -1;
+		default:
+			return 0;
+		}
+	}
+
+	// produces true if 'from' can reach 'to' through calls
+	private boolean reaches(String from, String to, Set<String> visited) {
+		Function function = functions.get(from);
+		if (function == null || !visited.add(from))
+			return false;
+		for (Instruction instruction : function.body)
+			if (instruction.type == Command.C_CALL
+					&& (instruction.arg1.equals(to) || reaches(instruction.arg1, to, visited)))
+				return true;
+		return false;
+	}
+
+	// largest index of the given segment used by the function (-1 if unused)
+	private int maxIndex(Function function, String segment) {
+		int max = -1;
+		for (Instruction instruction : function.body)
+			if (instruction.accesses(segment))
+				max = Math.max(max, instruction.arg2);
+		return max;
+	}
+
+	private List<Instruction> inlineCalls(Function host) {
+		List<Instruction> body = new ArrayList<Instruction>();
+		int numLocals = localCounts.get(host.name());
+		int extraLocals = 0;
+
+		for (int i = 0; i < host.body.size(); i++) {
+			Instruction instruction = host.body.get(i);
+			Function callee = instruction.type == Command.C_CALL ? functions.get(instruction.arg1) : null;
+			if (callee == null || !candidates.contains(callee.name())
+					|| maxIndex(callee, "argument") >= instruction.arg2
+					|| maxIndex(callee, "local") >= localCounts.get(callee.name())) {
+				body.add(instruction);
+				continue;
+			}
+
+			List<Instruction> copy = copyBody(host, i, callee, numLocals);
+			if (copy.size() - 1 > budget) {
+				body.add(instruction);
+				continue;
+			}
+			budget -= copy.size() - 1;
+			body.addAll(copy);
+			extraLocals = Math.max(extraLocals, slotsUsed);
+		}
+
+		host.header.arg2 = numLocals + extraLocals;
+		return body;
+	}
+
+	// produces the remapped copy of callee's body that replaces the call at
+	// host.body[site]; the callee's args and locals are mapped to the host's
+	// locals starting at index base
+	private List<Instruction> copyBody(Function host, int site, Function callee, int base) {
+		Instruction call = host.body.get(site);
+		String hostFile = call.fileName;
+		int numArgs = call.arg2;
+		int numLocals = localCounts.get(callee.name());
+		// saved THIS/THAT go right after the args and locals
+		slotsUsed = numArgs + numLocals;
+		String prefix = "inline:" + inlineCtr;
+		inlineCtr++;
+
+		List<Instruction> copy = new ArrayList<Instruction>();
+		int[] save = new int[2];
+		for (int p = 0; p < 2; p++) {
+			save[p] = -1;
+			if (writesPointer(callee, p) && relies(host, site, p)) {
+				save[p] = base + slotsUsed;
+				slotsUsed++;
+				copy.add(new Instruction(Command.C_PUSH, "pointer", p, hostFile));
+				copy.add(new Instruction(Command.C_POP, "local", save[p], hostFile));
+			}
+		}
+
+		// if the body starts by pushing arg 0 and never uses it again, the value can
+		// simply stay on the stack
+		Instruction first = callee.body.get(0);
+		boolean keepFirst = numArgs > 0 && first.type == Command.C_PUSH && first.arg1.equals("argument")
+				&& first.arg2 == 0 && uses(callee, "argument", 0) == 1;
+
+		// pop the args (the last one is on top of the stack)
+		for (int a = numArgs - 1; a >= (keepFirst ? 1 : 0); a--)
+			copy.add(new Instruction(Command.C_POP, "local", base + a, hostFile));
+		// locals start out as 0
+		for (int l = 0; l < numLocals; l++) {
+			copy.add(new Instruction(Command.C_PUSH, "constant", 0, hostFile));
+			copy.add(new Instruction(Command.C_POP, "local", base + numArgs + l, hostFile));
+		}
+
+		boolean needEnd = false;
+		for (int j = keepFirst ? 1 : 0; j < callee.body.size(); j++) {
+			Instruction instruction = callee.body.get(j);
+			switch (instruction.type) {
+			case C_PUSH:
+			case C_POP:
+				if (instruction.arg1.equals("argument"))
+					copy.add(new Instruction(instruction.type, "local", base + instruction.arg2, instruction.fileName));
+				else if (instruction.arg1.equals("local"))
+					copy.add(new Instruction(instruction.type, "local", base + numArgs + instruction.arg2,
+							instruction.fileName));
+				else
+					copy.add(copyOf(instruction));
+				break;
+			case C_LABEL:
+			case C_GOTO:
+			case C_IF:
+				copy.add(new Instruction(instruction.type, prefix + '$' + instruction.arg1, 0, instruction.fileName));
+				break;
+			case C_RETURN:
+				// the last return simply falls through to the end of the copy
+				if (j != callee.body.size() - 1) {
+					copy.add(new Instruction(Command.C_GOTO, prefix, 0, instruction.fileName));
+					needEnd = true;
+				}
+				break;
+			default:
+				copy.add(copyOf(instruction));
+				break;
+			}
+		}
+		if (needEnd)
+			copy.add(new Instruction(Command.C_LABEL, prefix, 0, hostFile));
+
+		for (int p = 0; p < 2; p++) {
+			if (save[p] >= 0) {
+				copy.add(new Instruction(Command.C_PUSH, "local", save[p], hostFile));
+				copy.add(new Instruction(Command.C_POP, "pointer", p, hostFile));
+			}
+		}
+		return copy;
+	}
+
+	private Instruction copyOf(Instruction instruction) {
+		return new Instruction(instruction.type, instruction.arg1, instruction.arg2, instruction.fileName);
+	}
+
+	// number of commands in the function that access index i of the segment
+	private int uses(Function function, String segment, int i) {
+		int count = 0;
+		for (Instruction instruction : function.body)
+			if (instruction.accesses(segment) && instruction.arg2 == i)
+				count++;
+		return count;
+	}
+
+	// <-- THIS/THAT analysis -->
+	// p = 0 refers to THIS, p = 1 to THAT. A command reads pointer p if it pushes
+	// it or accesses the segment based at it, and writes it if it pops into it
+
+	private boolean readsPointer(Instruction instruction, int p) {
+		return (instruction.type == Command.C_PUSH && instruction.accesses("pointer") && instruction.arg2 == p)
+				|| instruction.accesses(p == 0 ? "this" : "that");
+	}
+
+	private boolean writesPointer(Instruction instruction, int p) {
+		return instruction.type == Command.C_POP && instruction.accesses("pointer") && instruction.arg2 == p;
+	}
+
+	private boolean writesPointer(Function function, int p) {
+		for (Instruction instruction : function.body)
+			if (writesPointer(instruction, p))
+				return true;
+		return false;
+	}
+
+	// produces true if the host may read its own pointer p after the call at
+	// host.body[site] returns. We follow the straight-line code after the call; a
+	// write or a return settles it, and once control flow gets involved we fall
+	// back to asking whether the host reads p anywhere at all. Calls do not change
+	// pointers (they are restored on return), but the callee may read ours
+	private boolean relies(Function host, int site, int p) {
+		for (int i = site + 1; i < host.body.size(); i++) {
+			Instruction instruction = host.body.get(i);
+			if (readsPointer(instruction, p))
+				return true;
+			if (writesPointer(instruction, p))
+				return false;
+			switch (instruction.type) {
+			case C_RETURN:
+				return false;
+			case C_CALL:
+				if (mayReadOnEntry(instruction.arg1, p))
+					return true;
+				break;
+			case C_LABEL:
+			case C_GOTO:
+			case C_IF:
+				return mayRead(host, p);
+			default:
+				break;
+			}
+		}
+		return mayRead(host, p);
+	}
+
+	// produces true if the function reads pointer p anywhere, or calls a function
+	// that may read it on entry
+	private boolean mayRead(Function function, int p) {
+		for (Instruction instruction : function.body)
+			if (readsPointer(instruction, p)
+					|| (instruction.type == Command.C_CALL && mayReadOnEntry(instruction.arg1, p)))
+				return true;
+		return false;
+	}
+
+	// produces true if the named function may read the value pointer p had when
+	// it was called; functions outside the program are assumed to
+	private boolean mayReadOnEntry(String name, int p) {
+		Map<String, Boolean> memo = entryReads.get(p);
+		if (memo.containsKey(name))
+			return memo.get(name);
+		Function function = functions.get(name);
+		if (function == null)
+			return true;
+
+		// assume the worst while we are working on it (recursive calls)
+		memo.put(name, true);
+		boolean result = mayRead(function, p);
+		for (Instruction instruction : function.body) {
+			if (readsPointer(instruction, p))
+				break;
+			if (writesPointer(instruction, p) || instruction.type == Command.C_RETURN) {
+				result = false;
+				break;
+			}
+			// same as relies(): calls are transparent, control flow ends the scan
+			if (instruction.type == Command.C_CALL && mayReadOnEntry(instruction.arg1, p))
+				break;
+			if (instruction.type == Command.C_LABEL || instruction.type == Command.C_GOTO
+					|| instruction.type == Command.C_IF)
+				break;
+		}
+		memo.put(name, result);
+		return result;
+	}
+}
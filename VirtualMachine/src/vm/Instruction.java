@@ -0,0 +1,52 @@
+package vm;
+
+// a single parsed VM command. Commands are tagged with the name of the file
+// they were read from, because static variables are named after their file;
+// the tag has to travel with a command when an optimization pass moves it into
+// a function from another file
+public class Instruction {
+
+	public Command type;
+	// first argument (for ARITHMETIC, the command itself); null for RETURN
+	public String arg1;
+	// second argument; only meaningful for PUSH, POP, FUNCTION and CALL
+	public int arg2;
+	public String fileName;
+
+	public Instruction(Command type, String arg1, int arg2, String fileName) {
+		this.type = type;
+		this.arg1 = arg1;
+		this.arg2 = arg2;
+		this.fileName = fileName;
+	}
+
+	// produces true if this is a push or pop that touches the given segment
+	public boolean accesses(String segment) {
+		return (type == Command.C_PUSH || type == Command.C_POP) && arg1.equals(segment);
+	}
+
+	@Override
+	public String toString() {
+		switch (type) {
+		case C_ARITHMETIC:
+			return arg1;
+		case C_PUSH:
+			return "push " + arg1 + ' ' + arg2;
+		case C_POP:
+			return "pop " + arg1 + ' ' + arg2;
+		case C_LABEL:
+			return "label " + arg1;
+		case C_GOTO:
+			return "goto " + arg1;
+		case C_IF:
+			return "if-goto " + arg1;
+		case C_FUNCTION:
+			return "function " + arg1 + ' ' + arg2;
+		case C_CALL:
+			return "call " + arg1 + ' ' + arg2;
+		case C_RETURN:
+		default:
+			return "return";
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package vm;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+// decides which locals of each function have to be set to 0 on entry: the ones
+// that some path from the entry reads ('push local k') before anything writes
+// to them ('pop local k'). The others only need their room on the stack, and
+// can keep whatever was left there (see CodeWriter.writeFunction). Found with
+// a forward pass over the function's commands, which keeps the set of locals
+// written on every path to each command
+public class LocalInit {
+
+	private Map<String, boolean[]> zeroed;
+
+	public LocalInit(List<Instruction> program) {
+		zeroed = new HashMap<String, boolean[]>();
+		for (Function function : Function.split(program))
+			if (function.header != null)
+				zeroed.put(function.name(), analyze(function));
+	}
+
+	// produce, for each local of the named function, true iff it has to start out
+	// as 0
+	public boolean[] zeroedOf(String functionName) {
+		return zeroed.get(functionName);
+	}
+
+	private boolean[] analyze(Function function) {
+		List<Instruction> body = function.body;
+		boolean[] needsZero = new boolean[function.header.arg2];
+		Map<String, Integer> labels = new HashMap<String, Integer>();
+		for (int i = 0; i < body.size(); i++)
+			if (body.get(i).type == Command.C_LABEL)
+				labels.put(body.get(i).arg1, i);
+
+		// written[i]: the locals written on every path to command i so far (null
+		// until some path reaches it)
+		BitSet[] written = new BitSet[body.size()];
+		LinkedList<Integer> worklist = new LinkedList<Integer>();
+		if (!body.isEmpty()) {
+			written[0] = new BitSet();
+			worklist.add(0);
+		}
+		while (!worklist.isEmpty()) {
+			int i = worklist.poll();
+			Instruction instruction = body.get(i);
+			BitSet after = (BitSet) written[i].clone();
+			if (instruction.accesses("local") && instruction.arg2 < needsZero.length) {
+				if (instruction.type == Command.C_PUSH && !after.get(instruction.arg2))
+					needsZero[instruction.arg2] = true;
+				else if (instruction.type == Command.C_POP)
+					after.set(instruction.arg2);
+			}
+
+			if (instruction.type != Command.C_GOTO && instruction.type != Command.C_RETURN && i + 1 < body.size())
+				meet(written, i + 1, after, worklist);
+			if ((instruction.type == Command.C_GOTO || instruction.type == Command.C_IF)
+					&& labels.containsKey(instruction.arg1))
+				meet(written, labels.get(instruction.arg1), after, worklist);
+		}
+		return needsZero;
+	}
+
+	// narrow written[i] down to the locals also written on a path that reaches it
+	// with the given ones, and revisit i if that changed anything
+	private void meet(BitSet[] written, int i, BitSet incoming, LinkedList<Integer> worklist) {
+		if (written[i] == null) {
+			written[i] = (BitSet) incoming.clone();
+		} else {
+			BitSet narrowed = (BitSet) written[i].clone();
+			narrowed.and(incoming);
+			if (narrowed.equals(written[i]))
+				return;
+			written[i] = narrowed;
+		}
+		worklist.add(i);
+	}
+}
@@ -80,4 +80,20 @@ public class Parser {
 	public int arg2() {
 		return Integer.parseInt(command.split("\\s+")[2]);
 	}
+
+	// produce the current command as an Instruction, tagged with the name of the
+	// file it came from (see Instruction)
+	public Instruction instruction(String fileName) {
+		switch (commandType()) {
+		case C_RETURN:
+			return new Instruction(Command.C_RETURN, null, 0, fileName);
+		case C_PUSH:
+		case C_POP:
+		case C_FUNCTION:
+		case C_CALL:
+			return new Instruction(commandType(), arg1(), arg2(), fileName);
+		default:
+			return new Instruction(commandType(), arg1(), 0, fileName);
+		}
+	}
 }
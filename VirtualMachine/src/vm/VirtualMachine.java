@@ -1,13 +1,23 @@
 package vm;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 // integrates the Parser and CodeWriter modules, handles walking of the file tree
-// (only at depth level 1, does not go into children) when translating directories
+// (only at depth level 1, does not go into children) when translating directories.
+// All files are parsed before anything is written, so that whole-program
+// passes (see Inliner, FlowGraph, CallAnalyzer, LocalInit) can see every
+// function at once
 public class VirtualMachine {
 
-	// consumes a directory name or .vm file name (extension necessary)
+	// consumes a directory name or .vm file name (extension necessary), optionally
+	// followed by:
+	// --deferred-sp: keep stack pointer updates at compile time within basic blocks
+	// (see CodeWriter)
+	// --bump-alloc: allocate objects inline, for programs compiled with the Jack
+	// compiler's --bump-alloc option (see CodeWriter)
 	public static void main(String[] args) throws Exception {
 		if (args.length == 0)
 			throw new Exception("Must specify file or directory name");
@@ -24,50 +34,92 @@ public class VirtualMachine {
 			prefix = true;
 		}
 
-		Parser parser;
-		String outputName = args[0].endsWith(".vm") ? args[0].substring(0, args[0].length() - 3) : args[0];
-		CodeWriter codeWriter = new CodeWriter(outputName);
-
+		List<Instruction> program = new ArrayList<Instruction>();
 		for (String fileName : toParse) {
-			codeWriter.setFileName(pathToName(fileName));
-			parser = new Parser(prefix ? args[0] + "\\" + fileName : fileName);
-
+			Parser parser = new Parser(prefix ? new File(args[0], fileName).getPath() : fileName);
+			String name = pathToName(fileName);
 			while (parser.hasCommand()) {
 				parser.advance();
-				switch (parser.commandType()) {
-				case C_ARITHMETIC:
-					codeWriter.writeArithmetic(parser.arg1());
-					break;
-				case C_PUSH:
-				case C_POP:
-					codeWriter.writePushPop(parser.commandType(), parser.arg1(), parser.arg2());
-					break;
-				case C_LABEL:
-					codeWriter.writeLabel(parser.arg1());
-					break;
-				case C_GOTO:
-					codeWriter.writeGoto(parser.arg1());
-					break;
-				case C_IF:
-					codeWriter.writeIf(parser.arg1());
-					break;
-				case C_FUNCTION:
-					codeWriter.writeFunction(parser.arg1(), parser.arg2());
-					break;
-				case C_CALL:
-					codeWriter.writeCall(parser.arg1(), parser.arg2());
-					break;
-				case C_RETURN:
-					codeWriter.writeReturn();
-					break;
-				default:
-					throw new Exception("Unknown command type '" + parser.commandType() + '\'');
-				}
+				program.add(parser.instruction(name));
 			}
 		}
+
+		program = new Inliner().run(program);
+		program = new FlowGraph().run(program);
+
+		String outputName = args[0].endsWith(".vm") ? args[0].substring(0, args[0].length() - 3) : args[0];
+		CodeWriter codeWriter = new CodeWriter(outputName);
+		codeWriter.setDeferred(Arrays.asList(args).contains("--deferred-sp"));
+		codeWriter.setBumpAlloc(Arrays.asList(args).contains("--bump-alloc"));
+		translate(program, codeWriter, new CallAnalyzer(program, prefix), new LocalInit(program));
 		codeWriter.close();
 	}
 
+	private static void translate(List<Instruction> program, CodeWriter codeWriter, CallAnalyzer calls,
+			LocalInit locals) throws Exception {
+		// function whose body we are translating (its convention decides how it
+		// returns)
+		String current = null;
+		for (int i = 0; i < program.size(); i++) {
+			Instruction instruction = program.get(i);
+			codeWriter.setFileName(instruction.fileName);
+			switch (instruction.type) {
+			case C_ARITHMETIC:
+				codeWriter.writeArithmetic(instruction.arg1);
+				break;
+			case C_PUSH:
+				// the value a function without one returns is never used
+				boolean unused = i + 1 < program.size() && program.get(i + 1).type == Command.C_RETURN
+						&& current != null && !calls.returnsValue(current);
+				if (!unused)
+					codeWriter.writePushPop(instruction.type, instruction.arg1, instruction.arg2);
+				break;
+			case C_POP:
+				codeWriter.writePushPop(instruction.type, instruction.arg1, instruction.arg2);
+				break;
+			case C_LABEL:
+				codeWriter.writeLabel(instruction.arg1);
+				break;
+			case C_GOTO:
+				codeWriter.writeGoto(instruction.arg1);
+				break;
+			case C_IF:
+				codeWriter.writeIf(instruction.arg1);
+				break;
+			case C_FUNCTION:
+				current = instruction.arg1;
+				codeWriter.writeFunction(instruction.arg1, instruction.arg2, locals.zeroedOf(instruction.arg1));
+				break;
+			case C_CALL:
+				// a call whose result is returned right away is in tail position; the callee
+				// can reuse our frame (if it expects the same layout), and the return is
+				// folded into the jump
+				Convention convention = calls.conventionOf(instruction.arg1);
+				if (i + 1 < program.size() && program.get(i + 1).type == Command.C_RETURN && current != null
+						&& convention == calls.conventionOf(current)
+						&& calls.returnsValue(instruction.arg1) == calls.returnsValue(current)) {
+					codeWriter.writeTailCall(instruction.arg1, instruction.arg2, convention);
+					i++;
+				} else {
+					codeWriter.writeCall(instruction.arg1, instruction.arg2, convention);
+					// a callee without a return value leaves nothing to discard
+					if (!calls.returnsValue(instruction.arg1))
+						i++;
+				}
+				break;
+			case C_RETURN:
+				boolean value = calls.returnsValue(current);
+				if (calls.conventionOf(current) == Convention.LEAF)
+					codeWriter.writeReturn(Convention.LEAF, calls.numArgsOf(current), value);
+				else
+					codeWriter.writeReturn(calls.conventionOf(current), 0, value);
+				break;
+			default:
+				throw new Exception("Unknown command type '" + instruction.type + '\'');
+			}
+		}
+	}
+
 	// extracts file name from a path
 	public static String pathToName(String path) {
 		path = path.substring(0, path.length() - 3);
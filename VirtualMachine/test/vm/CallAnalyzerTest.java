@@ -0,0 +1,38 @@
+package vm;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+// Translates SimpleFunction.vm on its own: nothing in it calls
+// SimpleFunction.test (the test script sets up the standard frame and jumps
+// in), so its return must unwind the FULL frame, reading the return address
+// from FRAME-5 and restoring THAT and THIS.
+// Run from VirtualMachine with the translator and this class on the
+// classpath; throws if the return is wrong
+public class CallAnalyzerTest {
+
+	public static void main(String[] args) throws Exception {
+		Path dir = Files.createTempDirectory("SimpleFunction");
+		Path vm = dir.resolve("SimpleFunction.vm");
+		Files.copy(Paths.get("test", "SimpleFunction", "SimpleFunction.vm"), vm, StandardCopyOption.REPLACE_EXISTING);
+		VirtualMachine.main(new String[] { vm.toString() });
+
+		List<String> asm = Files.readAllLines(dir.resolve("SimpleFunction.asm"));
+		int start = asm.indexOf("//return");
+		if (start < 0)
+			throw new Exception("No standard return in SimpleFunction.asm");
+		String code = String.join("\n", asm.subList(start, asm.size()));
+		expect(code, "@14\nD=M\n@5\nA=D-A\nD=M\n@15\nM=D", "return address read from FRAME-5");
+		expect(code, "@14\nD=M\n@1\nA=D-A\nD=M\n@THAT\nM=D", "THAT restored");
+		expect(code, "@14\nD=M\n@2\nA=D-A\nD=M\n@THIS\nM=D", "THIS restored");
+		System.out.println("SimpleFunction.test returns with the FULL convention");
+	}
+
+	private static void expect(String code, String lines, String what) throws Exception {
+		if (!code.contains(lines))
+			throw new Exception("SimpleFunction.test return: expected " + what);
+	}
+}